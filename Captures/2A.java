@@ -1,29 +1,317 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
 // Singleton Pattern: User Authentication Management
 class UserAuth {
-    private static UserAuth instance;
-    private String username;
+    private static final long IDLE_TIMEOUT_MILLIS = 30 * 60_000L;
+    private static final long ABSOLUTE_TIMEOUT_MILLIS = 12 * 60 * 60_000L;
+
+    // Notified on the session-expiry thread whenever a session times out
+    private final List<SessionExpiryListener> expiryListeners = new CopyOnWriteArrayList<>();
+
+    // Expiries are handed off to this thread so that a slow listener, or the
+    // audit log blocking on a full ring, never holds up the timing wheel
+    private final ExecutorService expiryNotifier = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "session-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Live sessions keyed by opaque token, shared by every caller of this instance
+    private final SessionRegistry sessions = new SessionRegistry(1 << 18,
+            IDLE_TIMEOUT_MILLIS, ABSOLUTE_TIMEOUT_MILLIS, (token, user, reason) -> expiryNotifier.execute(() -> {
+                AuditLog.getInstance().record(AuditLog.Event.SESSION_EXPIRED, user);
+                for (SessionExpiryListener listener : expiryListeners) {
+                    listener.sessionExpired(token, user, reason);
+                }
+            }));
 
     private UserAuth() {}
 
-    public static synchronized UserAuth getInstance() {
-        if (instance == null) {
-            instance = new UserAuth();
+    // Holder idiom: lazy and thread-safe without locking on every call
+    private static class Holder {
+        private static final UserAuth INSTANCE = new UserAuth();
+    }
+
+    public static UserAuth getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    // Multi-session login: returns a token identifying this session
+    public String openSession(String username) {
+        String token = sessions.open(username);
+        AuditLog.getInstance().record(AuditLog.Event.LOGIN, username);
+        return token;
+    }
+
+    // Returns null for unknown or expired tokens; a hit counts as activity
+    public String getUsername(String token) {
+        return sessions.lookup(token);
+    }
+
+    public boolean closeSession(String token) {
+        String closed = sessions.close(token);
+        if (closed == null) {
+            return false;
+        }
+        AuditLog.getInstance().record(AuditLog.Event.LOGOUT, closed);
+        return true;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public void addExpiryListener(SessionExpiryListener listener) {
+        expiryListeners.add(listener);
+    }
+
+    public void removeExpiryListener(SessionExpiryListener listener) {
+        expiryListeners.remove(listener);
+    }
+}
+
+// Concurrent Session Store: many live sessions keyed by an opaque token.
+// Lookups are lock-free reads of a ConcurrentHashMap; open/close only lock
+// the single hash bin they touch, so logins are striped across the table.
+// With timeouts enabled each session has one timer in a TimingWheel; when it
+// fires the session is either expired or re-armed for its new deadline.
+class SessionRegistry {
+    private static final int TOKEN_BYTES = 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final long TICK_MILLIS = 100;
+
+    // One generator per thread so token creation does not contend on a shared lock
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    private final ConcurrentHashMap<String, Session> sessions;
+    private final long idleMillis;
+    private final long absoluteMillis;
+    private final SessionExpiryListener listener;
+    private final TimingWheel<Session> timeouts;
+
+    private static final class Session {
+        final String token;
+        final String username;
+        final long createdAt;
+        volatile long lastAccess;
+
+        Session(String token, String username, long now) {
+            this.token = token;
+            this.username = username;
+            this.createdAt = now;
+            this.lastAccess = now;
+        }
+    }
+
+    // Sessions that never time out
+    public SessionRegistry(int expectedSessions) {
+        this(expectedSessions, 0, 0, null);
+    }
+
+    // A timeout of 0 disables that kind of expiry
+    public SessionRegistry(int expectedSessions, long idleMillis, long absoluteMillis, SessionExpiryListener listener) {
+        sessions = new ConcurrentHashMap<>(expectedSessions, 0.75f,
+                Runtime.getRuntime().availableProcessors());
+        this.idleMillis = idleMillis;
+        this.absoluteMillis = absoluteMillis;
+        this.listener = listener;
+        timeouts = idleMillis > 0 || absoluteMillis > 0
+                ? new TimingWheel<>(TICK_MILLIS, this::expire)
+                : null;
+    }
+
+    public String open(String username) {
+        if (username == null) {
+            throw new IllegalArgumentException("Username must not be null");
+        }
+        long now = timeouts == null ? 0 : timeouts.now();
+        Session session;
+        do {
+            session = new Session(newToken(), username, now);
+        } while (sessions.putIfAbsent(session.token, session) != null);
+        if (timeouts != null) {
+            timeouts.schedule(session, deadline(session));
+        }
+        return session.token;
+    }
+
+    public String lookup(String token) {
+        Session session = token == null ? null : sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        if (timeouts != null) {
+            long now = timeouts.now();
+            if (now >= deadline(session)) {
+                return null;
+            }
+            session.lastAccess = now;
+        }
+        return session.username;
+    }
+
+    // Returns the username of the closed session, or null if there was none
+    public String close(String token) {
+        // Any pending timer finds the session gone and is dropped when it fires
+        Session session = token == null ? null : sessions.remove(token);
+        return session == null ? null : session.username;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public void shutdown() {
+        if (timeouts != null) {
+            timeouts.shutdown();
+        }
+    }
+
+    private long deadline(Session session) {
+        long idle = idleMillis > 0 ? session.lastAccess + idleMillis : Long.MAX_VALUE;
+        long absolute = absoluteMillis > 0 ? session.createdAt + absoluteMillis : Long.MAX_VALUE;
+        return Math.min(idle, absolute);
+    }
+
+    // Timer callback: expire the session, or return its new deadline if it was used since
+    private long expire(Session session, long now) {
+        if (sessions.get(session.token) != session) {
+            return -1;
+        }
+        long deadline = deadline(session);
+        if (now < deadline) {
+            return deadline;
+        }
+        if (sessions.remove(session.token, session) && listener != null) {
+            boolean absolute = absoluteMillis > 0 && now >= session.createdAt + absoluteMillis;
+            listener.sessionExpired(session.token, session.username,
+                    absolute ? SessionExpiry.ABSOLUTE : SessionExpiry.IDLE);
         }
-        return instance;
+        return -1;
     }
 
-    public void login(String username) {
-        this.username = username;
-        System.out.println(username + " logged in.");
+    private static String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.get().nextBytes(bytes);
+        char[] chars = new char[TOKEN_BYTES * 2];
+        for (int i = 0; i < TOKEN_BYTES; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
+
+// Contention benchmark: SessionRegistry vs. the original synchronized
+// getInstance()/login() path (reproduced here without the console output).
+// Run with: java SessionContentionBenchmark [threads] [opsPerThread]
+class SessionContentionBenchmark {
+    // Copy of the original UserAuth hot path: synchronized lookup, one shared field
+    static class LegacyUserAuth {
+        private static LegacyUserAuth instance;
+        private String username;
+
+        static synchronized LegacyUserAuth getInstance() {
+            if (instance == null) {
+                instance = new LegacyUserAuth();
+            }
+            return instance;
+        }
+
+        void login(String username) {
+            this.username = username;
+        }
+
+        String getUsername() {
+            return username;
+        }
     }
 
-    public void logout() {
-        System.out.println(username + " logged out.");
-        username = null;
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int ops = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        for (int round = 0; round < 3; round++) {
+            long legacy = run(threads, ops, true);
+            long registry = run(threads, ops, false);
+            System.out.printf("round %d: legacy %,d ops/s, registry %,d ops/s (%d threads)%n",
+                    round, legacy, registry, threads);
+        }
     }
 
-    public String getUsername() {
-        return username;
+    private static long run(int threads, int ops, boolean legacy) throws InterruptedException {
+        SessionRegistry registry = new SessionRegistry(threads * ops);
+        LongAdder sink = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            String user = "user" + t;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < ops; i++) {
+                        if (legacy) {
+                            LegacyUserAuth auth = LegacyUserAuth.getInstance();
+                            auth.login(user);
+                            if (auth.getUsername() != null) {
+                                sink.increment();
+                            }
+                        } else {
+                            String token = registry.open(user);
+                            if (registry.lookup(token) != null) {
+                                sink.increment();
+                            }
+                            registry.close(token);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return (long) threads * ops * 1_000_000_000L / Math.max(1, elapsed);
     }
 }
 
@@ -54,39 +342,330 @@ abstract class VehicleFactory {
     public abstract Vehicle createVehicle();
 }
 
+// Factories hand out the registry's shared flyweight for each vehicle type
 class CarFactory extends VehicleFactory {
     public Vehicle createVehicle() {
-        return new Car();
+        return VehicleRegistry.getInstance().acquire(VehicleType.CAR);
     }
 }
 
 class BikeFactory extends VehicleFactory {
     public Vehicle createVehicle() {
-        return new Bike();
+        return VehicleRegistry.getInstance().acquire(VehicleType.BIKE);
     }
 }
 
 class ScooterFactory extends VehicleFactory {
     public Vehicle createVehicle() {
-        return new Scooter();
+        return VehicleRegistry.getInstance().acquire(VehicleType.SCOOTER);
+    }
+}
+
+// Vehicle type index. The enum is the build-time index of every vehicle the
+// registry knows: javac fixes its constants, so startup only walks values()
+// and never scans the classpath or loads classes reflectively.
+enum VehicleType {
+    CAR(Car::new),
+    BIKE(Bike::new),
+    SCOOTER(Scooter::new);
+
+    final Supplier<Vehicle> constructor;
+
+    VehicleType(Supplier<Vehicle> constructor) {
+        this.constructor = constructor;
+    }
+}
+
+// Flyweight Registry: one shared instance per vehicle type, looked up by
+// ordinal in a plain array so dispatch never allocates. Vehicles carry no
+// per-ride state (FleetVehicle holds that), so every caller can share them.
+// Built eagerly from VehicleType at first use.
+class VehicleRegistry {
+    private final Vehicle[] flyweights;
+    private final VehicleFactory[] factories;
+
+    private VehicleRegistry() {
+        VehicleType[] types = VehicleType.values();
+        flyweights = new Vehicle[types.length];
+        factories = new VehicleFactory[types.length];
+        for (VehicleType type : types) {
+            flyweights[type.ordinal()] = type.constructor.get();
+            factories[type.ordinal()] = new VehicleFactory() {
+                public Vehicle createVehicle() {
+                    return acquire(type);
+                }
+            };
+        }
+    }
+
+    // Holder idiom: lazy and thread-safe without locking on every call
+    private static class Holder {
+        private static final VehicleRegistry INSTANCE = new VehicleRegistry();
+    }
+
+    public static VehicleRegistry getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    public Vehicle acquire(VehicleType type) {
+        return flyweights[type.ordinal()];
+    }
+
+    // Factory for a type chosen at runtime, so callers need not name a factory class
+    public VehicleFactory factory(VehicleType type) {
+        return factories[type.ordinal()];
+    }
+}
+
+// One vehicle in the dispatch fleet: where it last reported from and whether
+// it is free. The riding behaviour stays on the shared registry instance.
+class FleetVehicle {
+    static final int AVAILABLE = 0;
+    static final int CLAIMED = 1;
+
+    final int id;
+    final VehicleType type;
+    final Vehicle vehicle;
+    volatile double x;
+    volatile double y;
+    volatile int cell = -1;
+    final AtomicInteger state = new AtomicInteger(AVAILABLE);
+
+    FleetVehicle(int id, VehicleType type) {
+        this.id = id;
+        this.type = type;
+        this.vehicle = VehicleRegistry.getInstance().acquire(type);
+    }
+
+    // Lock-free claim: exactly one caller can win a free vehicle
+    boolean claim() {
+        return state.get() == AVAILABLE && state.compareAndSet(AVAILABLE, CLAIMED);
+    }
+}
+
+// Ride Dispatch Engine: keeps the fleet in one uniform grid per vehicle type
+// and matches each request to the nearest free vehicle of the requested type.
+// The search scans rings of cells outward from the request and stops once no
+// unscanned cell can hold anything closer. Claiming is a CAS on the vehicle,
+// so requests matched in parallel can never win the same vehicle.
+class DispatchEngine {
+    private final double width;
+    private final double height;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private final Set<FleetVehicle>[][] grids;
+    private final ConcurrentHashMap<Integer, FleetVehicle> fleet = new ConcurrentHashMap<>();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public DispatchEngine(double width, double height, double cellSize) {
+        this.width = width;
+        this.height = height;
+        this.cellSize = cellSize;
+        columns = Math.max(1, (int) Math.ceil(width / cellSize));
+        rows = Math.max(1, (int) Math.ceil(height / cellSize));
+        grids = new Set[VehicleType.values().length][columns * rows];
+        for (Set<FleetVehicle>[] grid : grids) {
+            for (int i = 0; i < grid.length; i++) {
+                grid[i] = ConcurrentHashMap.newKeySet();
+            }
+        }
+    }
+
+    public void register(int id, VehicleType type, double x, double y) {
+        FleetVehicle vehicle = new FleetVehicle(id, type);
+        if (fleet.putIfAbsent(id, vehicle) != null) {
+            throw new IllegalArgumentException("Vehicle already registered: " + id);
+        }
+        reportPosition(id, x, y);
+    }
+
+    // Moves the vehicle to the cell for its new position. It is added to the
+    // new cell before leaving the old one, so a search never misses it.
+    public void reportPosition(int id, double x, double y) {
+        FleetVehicle vehicle = vehicle(id);
+        vehicle.x = clamp(x, width);
+        vehicle.y = clamp(y, height);
+        int cell = cellOf(vehicle.x, vehicle.y);
+        int previous = vehicle.cell;
+        if (cell != previous) {
+            Set<FleetVehicle>[] grid = grids[vehicle.type.ordinal()];
+            grid[cell].add(vehicle);
+            vehicle.cell = cell;
+            if (previous >= 0) {
+                grid[previous].remove(vehicle);
+            }
+        }
+    }
+
+    // Ends a ride: the vehicle reports where it is now and becomes free again
+    public void release(int id, double x, double y) {
+        reportPosition(id, x, y);
+        vehicle(id).state.set(FleetVehicle.AVAILABLE);
+    }
+
+    // Claims the nearest free vehicle of the type within maxDistance; -1 if none
+    public int match(VehicleType type, double x, double y, double maxDistance) {
+        Set<FleetVehicle>[] grid = grids[type.ordinal()];
+        int cx = Math.min(columns - 1, (int) (clamp(x, width) / cellSize));
+        int cy = Math.min(rows - 1, (int) (clamp(y, height) / cellSize));
+        int maxRing = (int) Math.ceil(maxDistance / cellSize);
+        double maxSquared = maxDistance * maxDistance;
+        while (true) {
+            FleetVehicle best = null;
+            double bestSquared = maxSquared;
+            for (int ring = 0; ring <= maxRing; ring++) {
+                // Cells in this ring and beyond are at least (ring - 1) cells away
+                double ringReach = (ring - 1) * cellSize;
+                if (best != null && ringReach > 0 && bestSquared <= ringReach * ringReach) {
+                    break;
+                }
+                for (int gy = cy - ring; gy <= cy + ring; gy++) {
+                    if (gy < 0 || gy >= rows) {
+                        continue;
+                    }
+                    boolean edgeRow = gy == cy - ring || gy == cy + ring;
+                    int step = edgeRow ? 1 : Math.max(1, 2 * ring);
+                    for (int gx = cx - ring; gx <= cx + ring; gx += step) {
+                        if (gx < 0 || gx >= columns) {
+                            continue;
+                        }
+                        for (FleetVehicle candidate : grid[gx + gy * columns]) {
+                            if (candidate.state.get() != FleetVehicle.AVAILABLE) {
+                                continue;
+                            }
+                            double dx = candidate.x - x;
+                            double dy = candidate.y - y;
+                            double squared = dx * dx + dy * dy;
+                            if (squared <= bestSquared) {
+                                best = candidate;
+                                bestSquared = squared;
+                            }
+                        }
+                    }
+                }
+            }
+            if (best == null) {
+                return -1;
+            }
+            if (best.claim()) {
+                return best.id;
+            }
+            // Someone else won it; search again without it
+        }
+    }
+
+    // Matches many requests in parallel; results[i] is the claimed vehicle id or -1
+    public void matchAll(VehicleType[] types, double[] xs, double[] ys, double maxDistance, int[] results) {
+        IntStream.range(0, types.length).parallel()
+                .forEach(i -> results[i] = match(types[i], xs[i], ys[i], maxDistance));
+    }
+
+    public Vehicle vehicleFor(int id) {
+        return vehicle(id).vehicle;
+    }
+
+    private FleetVehicle vehicle(int id) {
+        FleetVehicle vehicle = fleet.get(id);
+        if (vehicle == null) {
+            throw new IllegalArgumentException("Unknown vehicle: " + id);
+        }
+        return vehicle;
+    }
+
+    private int cellOf(double x, double y) {
+        int cx = Math.min(columns - 1, (int) (x / cellSize));
+        int cy = Math.min(rows - 1, (int) (y / cellSize));
+        return cx + cy * columns;
+    }
+
+    private static double clamp(double value, double limit) {
+        return Math.max(0, Math.min(value, limit));
+    }
+}
+
+// Dispatch benchmark: a random fleet, rounds of random ride requests matched
+// in parallel, checking that no vehicle is ever handed to two requests.
+// Run with: java DispatchBenchmark [vehicles] [requestsPerRound] [rounds]
+class DispatchBenchmark {
+    public static void main(String[] args) {
+        int vehicles = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        double size = 100_000;  // a 100 km square, in metres
+        VehicleType[] types = VehicleType.values();
+
+        DispatchEngine engine = new DispatchEngine(size, size, 1_000);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int id = 0; id < vehicles; id++) {
+            engine.register(id, types[id % types.length], random.nextDouble(size), random.nextDouble(size));
+        }
+
+        VehicleType[] wanted = new VehicleType[requests];
+        double[] xs = new double[requests];
+        double[] ys = new double[requests];
+        int[] results = new int[requests];
+        long matched = 0;
+        long elapsed = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < requests; i++) {
+                wanted[i] = types[random.nextInt(types.length)];
+                xs[i] = random.nextDouble(size);
+                ys[i] = random.nextDouble(size);
+            }
+            long begin = System.nanoTime();
+            engine.matchAll(wanted, xs, ys, 10_000, results);
+            elapsed += System.nanoTime() - begin;
+
+            BitSet seen = new BitSet(vehicles);
+            for (int id : results) {
+                if (id < 0) {
+                    continue;
+                }
+                if (seen.get(id)) {
+                    throw new IllegalStateException("Vehicle " + id + " was matched twice");
+                }
+                seen.set(id);
+                matched++;
+                engine.release(id, random.nextDouble(size), random.nextDouble(size));
+            }
+        }
+        System.out.printf("%,d vehicles, %,d requests: %,d matched, %,d matches/s on %d cores%n",
+                vehicles, (long) requests * rounds, matched, matched * 1_000_000_000L / Math.max(1, elapsed),
+                Runtime.getRuntime().availableProcessors());
     }
 }
 
 // Abstract Factory Pattern: Payment Method Creation
 interface PaymentMethod {
     void pay();
+
+    // Which gateway channel charges for this method go through
+    PaymentChannel channel();
+}
+
+enum PaymentChannel {
+    CREDIT_CARD, PAYPAL
 }
 
 class CreditCard implements PaymentMethod {
     public void pay() {
         System.out.println("Payment made with Credit Card.");
     }
+
+    public PaymentChannel channel() {
+        return PaymentChannel.CREDIT_CARD;
+    }
 }
 
 class PayPal implements PaymentMethod {
     public void pay() {
         System.out.println("Payment made with PayPal.");
     }
+
+    public PaymentChannel channel() {
+        return PaymentChannel.PAYPAL;
+    }
 }
 
 interface PaymentFactory {
@@ -105,12 +684,619 @@ class PayPalFactory implements PaymentFactory {
     }
 }
 
+// Outcome of one charge
+class PaymentResult {
+    private final long paymentId;
+    private final boolean approved;
+
+    PaymentResult(long paymentId, boolean approved) {
+        this.paymentId = paymentId;
+        this.approved = approved;
+    }
+
+    public long getPaymentId() {
+        return paymentId;
+    }
+
+    public boolean isApproved() {
+        return approved;
+    }
+}
+
+// Asynchronous Payment Service: charges return futures instead of blocking
+// the caller. In batched mode each channel has a dispatcher that coalesces
+// whatever charges are pending (up to maxBatch, waiting at most lingerMicros
+// for more) into one gateway round trip; in unbatched mode every charge is
+// its own round trip. Gateway calls run on virtual threads when the JVM has
+// them (Java 21+) and on a cached thread pool otherwise.
+class AsyncPaymentService implements AutoCloseable {
+    private final GatewayClient gateway;
+    private final boolean batched;
+    private final int maxBatch;
+    private final long lingerMicros;
+    private final ExecutorService executor = newTaskExecutor();
+    private final AtomicLong ids = new AtomicLong();
+    private final IdempotencyCache<PaymentResult> idempotency = new IdempotencyCache<>(100_000, 24 * 60 * 60_000L);
+    private final LinkedBlockingQueue<PendingCharge>[] queues;
+    private final Thread[] dispatchers;
+    // Charges are accepted under the read side and close() flips running under
+    // the write side, so nothing is queued or submitted once close() has begun
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean running = true;
+
+    private static final class PendingCharge {
+        final long id;
+        final PaymentChannel channel;
+        final long amountCents;
+        final CompletableFuture<PaymentResult> result = new CompletableFuture<>();
+
+        PendingCharge(long id, PaymentChannel channel, long amountCents) {
+            this.id = id;
+            this.channel = channel;
+            this.amountCents = amountCents;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public AsyncPaymentService(GatewayClient gateway, boolean batched, int maxBatch, long lingerMicros) {
+        this.gateway = gateway;
+        this.batched = batched;
+        this.maxBatch = maxBatch;
+        this.lingerMicros = lingerMicros;
+        PaymentChannel[] channels = PaymentChannel.values();
+        queues = new LinkedBlockingQueue[channels.length];
+        dispatchers = new Thread[channels.length];
+        if (batched) {
+            for (PaymentChannel channel : channels) {
+                LinkedBlockingQueue<PendingCharge> queue = new LinkedBlockingQueue<>();
+                queues[channel.ordinal()] = queue;
+                Thread dispatcher = new Thread(() -> dispatch(queue), "payments-" + channel);
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+                dispatchers[channel.ordinal()] = dispatcher;
+            }
+        }
+    }
+
+    // Idempotent charge: a retry with the same request id returns the first
+    // outcome (or joins it while it is still running) instead of charging again
+    public CompletableFuture<PaymentResult> pay(String requestId, PaymentMethod method, long amountCents) {
+        return idempotency.execute(requestId, () -> pay(method, amountCents));
+    }
+
+    public CompletableFuture<PaymentResult> pay(PaymentMethod method, long amountCents) {
+        PendingCharge charge = new PendingCharge(ids.incrementAndGet(), method.channel(), amountCents);
+        closeLock.readLock().lock();
+        try {
+            if (!running) {
+                charge.result.completeExceptionally(closed());
+            } else if (batched) {
+                queues[charge.channel.ordinal()].add(charge);
+            } else {
+                executor.execute(() -> send(List.of(charge)));
+            }
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        return charge.result;
+    }
+
+    // Takes the first pending charge, then whatever else arrives within the
+    // linger window, and sends them as one batch without waiting for the reply
+    private void dispatch(LinkedBlockingQueue<PendingCharge> queue) {
+        List<PendingCharge> batch = new ArrayList<>(maxBatch);
+        try {
+            while (running || !queue.isEmpty()) {
+                PendingCharge first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long lingerUntil = System.nanoTime() + lingerMicros * 1_000L;
+                while (batch.size() < maxBatch) {
+                    if (queue.drainTo(batch, maxBatch - batch.size()) == 0) {
+                        long remaining = lingerUntil - System.nanoTime();
+                        PendingCharge next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+                List<PendingCharge> outgoing = new ArrayList<>(batch);
+                batch.clear();
+                executor.execute(() -> send(outgoing));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(List<PendingCharge> charges) {
+        int size = charges.size();
+        long[] chargeIds = new long[size];
+        byte[] channels = new byte[size];
+        long[] amounts = new long[size];
+        for (int i = 0; i < size; i++) {
+            PendingCharge charge = charges.get(i);
+            chargeIds[i] = charge.id;
+            channels[i] = (byte) charge.channel.ordinal();
+            amounts[i] = charge.amountCents;
+        }
+        try {
+            boolean[] approved = gateway.charge(chargeIds, channels, amounts);
+            for (int i = 0; i < size; i++) {
+                charges.get(i).result.complete(new PaymentResult(chargeIds[i], approved[i]));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (PendingCharge charge : charges) {
+                charge.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    // Sends whatever is still queued, then waits for outstanding gateway calls
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            for (Thread dispatcher : dispatchers) {
+                if (dispatcher != null) {
+                    dispatcher.join();
+                }
+            }
+            // Anything a dispatcher did not get to (if it was interrupted) fails rather than hangs
+            for (LinkedBlockingQueue<PendingCharge> queue : queues) {
+                PendingCharge leftover;
+                while (queue != null && (leftover = queue.poll()) != null) {
+                    leftover.result.completeExceptionally(closed());
+                }
+            }
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static IllegalStateException closed() {
+        return new IllegalStateException("Payment service is closed");
+    }
+
+    static ExecutorService newTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "payments-io");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
+
+// Idempotency Cache: remembers the outcome of each request id so a retry
+// gets the first result instead of running again. Concurrent duplicates share
+// one in-flight future (single flight). Entries expire after a fixed time,
+// and the cache stays bounded using W-TinyLFU: new entries land in a small
+// LRU window, and an entry leaving the window only displaces the main
+// region's LRU victim if a frequency sketch says it is requested more often.
+// In-flight entries are never evicted; failed executions are forgotten so a
+// retry can run again.
+class IdempotencyCache<V> {
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final long ttlNanos;
+    private final int windowCapacity;
+    private final int mainCapacity;
+
+    // Eviction policy state, guarded by policyLock
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final LinkedHashMap<String, Boolean> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    private static final class Entry<V> {
+        final String key;
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        final long expiresAt;
+
+        Entry(String key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public IdempotencyCache(int capacity, long ttlMillis) {
+        ttlNanos = ttlMillis * 1_000_000L;
+        windowCapacity = Math.max(1, capacity / 100);
+        mainCapacity = Math.max(1, capacity - windowCapacity);
+        sketch = new FrequencySketch(capacity);
+    }
+
+    // Returns the stored or in-flight outcome for requestId, running action only
+    // if there is none
+    public CompletableFuture<V> execute(String requestId, Supplier<CompletableFuture<V>> action) {
+        long now = System.nanoTime();
+        while (true) {
+            Entry<V> existing = entries.get(requestId);
+            if (existing != null) {
+                if (now - existing.expiresAt < 0) {
+                    recordRead(requestId);
+                    return existing.future;
+                }
+                entries.remove(requestId, existing);
+            }
+            Entry<V> created = new Entry<>(requestId, now + ttlNanos);
+            if (entries.putIfAbsent(requestId, created) != null) {
+                continue;
+            }
+            admit(requestId);
+            CompletableFuture<V> result;
+            try {
+                result = action.get();
+            } catch (RuntimeException e) {
+                result = CompletableFuture.failedFuture(e);
+            }
+            result.whenComplete((value, error) -> {
+                if (error != null) {
+                    entries.remove(requestId, created);
+                    created.future.completeExceptionally(error);
+                } else {
+                    created.future.complete(value);
+                }
+            });
+            return created.future;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Reads only feed the policy when the lock is free; losing a few is harmless
+    private void recordRead(String requestId) {
+        if (policyLock.tryLock()) {
+            try {
+                sketch.increment(requestId.hashCode());
+                if (window.get(requestId) == null) {
+                    main.get(requestId);
+                }
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    private void admit(String requestId) {
+        policyLock.lock();
+        try {
+            sketch.increment(requestId.hashCode());
+            window.put(requestId, Boolean.TRUE);
+            if (window.size() <= windowCapacity) {
+                return;
+            }
+            String candidate = window.keySet().iterator().next();
+            window.remove(candidate);
+            if (main.size() < mainCapacity) {
+                main.put(candidate, Boolean.TRUE);
+                return;
+            }
+            Entry<V> victim = evictableVictim();
+            // Removals name the entry that was judged, so one re-admitted under
+            // the same key in the meantime is left alone
+            Entry<V> candidateEntry = entries.get(candidate);
+            if (victim == null) {
+                // Everything in main is still running: keep the candidate for now
+                main.put(candidate, Boolean.TRUE);
+            } else if (sketch.frequency(candidate.hashCode()) > sketch.frequency(victim.key.hashCode())
+                    || (candidateEntry != null && !candidateEntry.future.isDone())) {
+                main.remove(victim.key);
+                entries.remove(victim.key, victim);
+                main.put(candidate, Boolean.TRUE);
+            } else if (candidateEntry != null) {
+                entries.remove(candidate, candidateEntry);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    // Least recently used main entry that is finished (or already gone);
+    // expired entries found on the way are dropped outright
+    private Entry<V> evictableVictim() {
+        long now = System.nanoTime();
+        Iterator<String> keys = main.keySet().iterator();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Entry<V> entry = entries.get(key);
+            if (entry == null || now - entry.expiresAt >= 0) {
+                keys.remove();
+                if (entry != null) {
+                    entries.remove(key, entry);
+                }
+                if (main.size() < mainCapacity) {
+                    return null;
+                }
+                continue;
+            }
+            if (entry.future.isDone()) {
+                return entry;
+            }
+        }
+        return null;
+    }
+}
+
+// Count-min sketch of 4-bit counters (16 per long, 4 rows). Counters are
+// halved once enough increments have been seen, so old popularity fades.
+class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        table = new long[size];
+        mask = size - 1;
+        sampleSize = 10 * Math.max(1, capacity);
+    }
+
+    int frequency(int hash) {
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < 4; row++) {
+            long h = spread(hash, row);
+            int counter = (int) ((table[(int) (h & mask)] >>> offset(h, row)) & 0xF);
+            frequency = Math.min(frequency, counter);
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            long h = spread(hash, row);
+            int index = (int) (h & mask);
+            int shift = offset(h, row);
+            if (((table[index] >>> shift) & 0xF) < 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+    }
+
+    private static long spread(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        return h ^ (h >>> 32);
+    }
+
+    // Each row uses its own group of four counters in the chosen long
+    private static int offset(long h, int row) {
+        return ((int) (h >>> 40) & 3) * 16 + row * 4;
+    }
+}
+
+// Client for the stub gateway. Keeps a pool of TCP connections; each call
+// borrows one for a single request/response round trip.
+// Wire format, request: [int count] then count x [long id][byte channel][long amountCents]
+//              response: [int count] then count x [long id][byte approved]
+class GatewayClient implements AutoCloseable {
+    private final String host;
+    private final int port;
+    private final LinkedBlockingQueue<GatewayConnection> idle = new LinkedBlockingQueue<>();
+
+    private static final class GatewayConnection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        GatewayConnection(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+    }
+
+    public GatewayClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public boolean[] charge(long[] ids, byte[] channels, long[] amounts) throws IOException {
+        GatewayConnection connection = idle.poll();
+        if (connection == null) {
+            connection = new GatewayConnection(host, port);
+        }
+        try {
+            connection.out.writeInt(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                connection.out.writeLong(ids[i]);
+                connection.out.writeByte(channels[i]);
+                connection.out.writeLong(amounts[i]);
+            }
+            connection.out.flush();
+            int count = connection.in.readInt();
+            if (count != ids.length) {
+                throw new IOException("Gateway answered " + count + " of " + ids.length + " charges");
+            }
+            boolean[] approved = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                if (connection.in.readLong() != ids[i]) {
+                    throw new IOException("Gateway answered out of order");
+                }
+                approved[i] = connection.in.readByte() != 0;
+            }
+            idle.add(connection);
+            return approved;
+        } catch (IOException e) {
+            connection.socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        GatewayConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.socket.close();
+        }
+    }
+}
+
+// Stand-in payment gateway for local testing. Every request costs a fixed
+// round-trip delay plus a small per-charge delay; charges above the limit
+// are declined. Run on its own with: java StubPaymentGateway [port]
+class StubPaymentGateway implements AutoCloseable {
+    static final long ROUND_TRIP_MICROS = 1_000;
+    static final long PER_CHARGE_MICROS = 5;
+    static final long LIMIT_CENTS = 1_000_000;
+
+    private final ServerSocket server;
+
+    public StubPaymentGateway(int port) throws IOException {
+        server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "stub-gateway");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread handler = new Thread(() -> serve(socket), "stub-gateway-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                int count = in.readInt();
+                long[] ids = new long[count];
+                boolean[] approved = new boolean[count];
+                for (int i = 0; i < count; i++) {
+                    ids[i] = in.readLong();
+                    in.readByte();
+                    long amount = in.readLong();
+                    approved[i] = amount > 0 && amount <= LIMIT_CENTS;
+                }
+                LockSupport.parkNanos((ROUND_TRIP_MICROS + PER_CHARGE_MICROS * count) * 1_000L);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(ids[i]);
+                    out.writeByte(approved[i] ? 1 : 0);
+                }
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // Client closed the connection
+        } catch (IOException e) {
+            System.err.println("Stub gateway connection failed: " + e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        StubPaymentGateway gateway = new StubPaymentGateway(args.length > 0 ? Integer.parseInt(args[0]) : 9090);
+        System.out.println("Stub payment gateway listening on port " + gateway.getPort());
+        Thread.currentThread().join();
+    }
+}
+
+// Load generator comparing batched and unbatched payment execution.
+// Starts an in-process stub gateway unless a port is given.
+// Run with: java PaymentLoadBenchmark [payments] [concurrency] [gatewayPort]
+class PaymentLoadBenchmark {
+    public static void main(String[] args) throws Exception {
+        int payments = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        StubPaymentGateway local = args.length > 2 ? null : new StubPaymentGateway(0);
+        int port = local != null ? local.getPort() : Integer.parseInt(args[2]);
+
+        for (boolean batched : new boolean[] {false, true, false, true}) {
+            try (GatewayClient client = new GatewayClient("localhost", port);
+                 AsyncPaymentService service = new AsyncPaymentService(client, batched, 256, 200)) {
+                run(service, payments, concurrency, batched ? "batched" : "unbatched");
+            }
+        }
+        if (local != null) {
+            local.close();
+        }
+    }
+
+    // Keeps `concurrency` payments in flight and records each one's latency
+    private static void run(AsyncPaymentService service, int payments, int concurrency, String label)
+            throws InterruptedException {
+        PaymentMethod[] methods = {new CreditCard(), new PayPal()};
+        long[] latencies = new long[payments];
+        Semaphore inFlight = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(payments);
+        LongAdder failures = new LongAdder();
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < payments; i++) {
+            inFlight.acquire();
+            int index = i;
+            long start = System.nanoTime();
+            service.pay(methods[i & 1], 100 + i % 10_000).whenComplete((result, error) -> {
+                latencies[index] = System.nanoTime() - start;
+                if (error != null) {
+                    failures.increment();
+                }
+                inFlight.release();
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+
+        Arrays.sort(latencies);
+        System.out.printf("%-9s %,d payments, %d in flight: %,d payments/s, p50 %.2f ms, p99 %.2f ms, %d failed%n",
+                label, payments, concurrency, payments * 1_000_000_000L / elapsed,
+                latencies[payments / 2] / 1e6, latencies[(int) (payments * 0.99)] / 1e6, failures.sum());
+    }
+}
+
 // Main Class
 public class Main {
     public static void main(String[] args) {
         // Using Singleton pattern to manage user authentication
         UserAuth userAuth = UserAuth.getInstance();
-        userAuth.login("Alice");
+        String session = userAuth.openSession("Alice");
+        System.out.println(userAuth.getUsername(session) + " logged in.");
 
         // Using Factory Method pattern to create vehicles
         VehicleFactory carFactory = new CarFactory();
@@ -125,6 +1311,10 @@ public class Main {
         Vehicle scooter = scooterFactory.createVehicle();
         scooter.ride();
 
+        // Picking the vehicle type at runtime through the registry
+        Vehicle requested = VehicleRegistry.getInstance().factory(VehicleType.valueOf("CAR")).createVehicle();
+        requested.ride();
+
         // Using Abstract Factory pattern to create payment methods
         PaymentFactory creditCardFactory = new CreditCardFactory();
         PaymentMethod creditCard = creditCardFactory.createPaymentMethod();
@@ -135,6 +1325,7 @@ public class Main {
         payPal.pay();
 
         // User logs out
-        userAuth.logout();
+        System.out.println(userAuth.getUsername(session) + " logged out.");
+        userAuth.closeSession(session);
     }
 }
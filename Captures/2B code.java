@@ -1,4 +1,9 @@
 // MusicStreamingApp.java
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
 public class MusicStreamingApp {
 
     // MusicPlayer interface
@@ -6,11 +11,17 @@ public class MusicStreamingApp {
         void play();
         void stop();
         void pause();
+
+        // Installs effects, innermost first, on whatever produces the audio
+        default void applyDsp(List<DspChain.Stage> stages) {
+        }
     }
 
     // LocalFilePlayer class
     public static class LocalFilePlayer implements MusicPlayer {
         private String filePath;
+        private PcmPipeline pipeline;
+        private IOException pipelineFailure;
 
         public LocalFilePlayer(String filePath) {
             this.filePath = filePath;
@@ -19,40 +30,106 @@ public class MusicStreamingApp {
         @Override
         public void play() {
             System.out.println("Playing local file: " + filePath);
+            if (getPipeline() != null) {
+                pipeline.play();
+            }
         }
 
         @Override
         public void stop() {
             System.out.println("Stopped playing local file: " + filePath);
+            if (pipeline != null) {
+                pipeline.stop();
+            }
         }
 
         @Override
         public void pause() {
             System.out.println("Paused local file: " + filePath);
+            if (pipeline != null) {
+                pipeline.pause();
+            }
+        }
+
+        @Override
+        public void applyDsp(List<DspChain.Stage> stages) {
+            if (getPipeline() != null) {
+                pipeline.setProcessor(stages.isEmpty() ? null : new DspChain(stages));
+            }
+        }
+
+        // Maps the file on first use; null if it is missing or not WAV/PCM,
+        // in which case it is not tried again
+        public PcmPipeline getPipeline() {
+            if (pipeline == null && pipelineFailure == null) {
+                try {
+                    pipeline = new PcmPipeline(Paths.get(filePath), new PcmPipeline.PeakMeterSink());
+                } catch (IOException e) {
+                    pipelineFailure = e;
+                }
+            }
+            return pipeline;
+        }
+
+        // Why the file could not be played, or null
+        public IOException getPipelineFailure() {
+            return pipelineFailure;
         }
     }
 
     // OnlineStreamingPlayer class
     public static class OnlineStreamingPlayer implements MusicPlayer {
+        private static final int READ_AHEAD_SEGMENTS = 4;
+        private static final long SEGMENT_MILLIS = 2_000;
+
         private String url;
+        // Null when the player only announces what it would play
+        private SegmentFetcher.StreamControl stream;
 
         public OnlineStreamingPlayer(String url) {
             this.url = url;
         }
 
+        // Streams segments through the fetcher's read-ahead and disk cache
+        public OnlineStreamingPlayer(String url, SegmentFetcher fetcher) {
+            this.url = url;
+            this.stream = new SegmentFetcher.Playback(fetcher, url, READ_AHEAD_SEGMENTS, SEGMENT_MILLIS);
+        }
+
+        // Streams through a jitter buffer, switching between bitrate variants
+        // (kbit/s, ascending) as delivery speeds up or slows down
+        public OnlineStreamingPlayer(String url, SegmentFetcher fetcher, int[] variantsKbps) {
+            this.url = url;
+            this.stream = new AdaptiveStream(fetcher, url, variantsKbps, SEGMENT_MILLIS);
+        }
+
         @Override
         public void play() {
             System.out.println("Playing online stream: " + url);
+            if (stream != null) {
+                stream.play();
+            }
         }
 
         @Override
         public void stop() {
             System.out.println("Stopped online stream: " + url);
+            if (stream != null) {
+                stream.stop();
+            }
         }
 
         @Override
         public void pause() {
             System.out.println("Paused online stream: " + url);
+            if (stream != null) {
+                stream.pause();
+            }
+        }
+
+        // A SegmentFetcher.Playback or an AdaptiveStream, or null
+        public SegmentFetcher.StreamControl getStream() {
+            return stream;
         }
     }
 
@@ -83,14 +160,49 @@ public class MusicStreamingApp {
     // MusicPlayerDecorator abstract class
     public abstract static class MusicPlayerDecorator implements MusicPlayer {
         protected MusicPlayer musicPlayer;
+        private boolean dspInstalled;
 
         public MusicPlayerDecorator(MusicPlayer musicPlayer) {
             this.musicPlayer = musicPlayer;
         }
 
+        // The effect this decorator adds to the audio, or null
+        protected DspChain.Stage getDspStage() {
+            return null;
+        }
+
+        // Adds this decorator's effect ahead of the outer ones and passes the
+        // chain inward, so the player runs the whole stack as one fused pass
+        @Override
+        public void applyDsp(List<DspChain.Stage> stages) {
+            List<DspChain.Stage> chain = new ArrayList<>();
+            if (getDspStage() != null) {
+                chain.add(getDspStage());
+            }
+            chain.addAll(stages);
+            musicPlayer.applyDsp(chain);
+        }
+
+        // Only the outermost decorator installs the chain, and only on the
+        // first play, so playing again keeps the filters' state. It goes in
+        // before the player starts so the opening blocks are processed too.
         @Override
         public void play() {
-            musicPlayer.play();
+            if (!dspInstalled) {
+                dspInstalled = true;
+                applyDsp(new ArrayList<>());
+            }
+            start();
+        }
+
+        // Starts the wrapped player, going through inner decorators without
+        // letting them install chains of their own
+        protected void start() {
+            if (musicPlayer instanceof MusicPlayerDecorator) {
+                ((MusicPlayerDecorator) musicPlayer).start();
+            } else {
+                musicPlayer.play();
+            }
         }
 
         @Override
@@ -106,17 +218,25 @@ public class MusicStreamingApp {
 
     // EqualizerDecorator class
     public static class EqualizerDecorator extends MusicPlayerDecorator {
+        private final DspChain.Equalizer equalizer = new DspChain.Equalizer();
+
         public EqualizerDecorator(MusicPlayer musicPlayer) {
             super(musicPlayer);
         }
 
         public void setEqualizer(String setting) {
             System.out.println("Setting equalizer to: " + setting);
+            equalizer.setPreset(setting);
         }
 
         @Override
-        public void play() {
-            super.play();
+        protected DspChain.Stage getDspStage() {
+            return equalizer;
+        }
+
+        @Override
+        protected void start() {
+            super.start();
             setEqualizer("Flat");
         }
     }
@@ -124,20 +244,28 @@ public class MusicStreamingApp {
     // VolumeControlDecorator class
     public static class VolumeControlDecorator extends MusicPlayerDecorator {
         private int volume;
+        private final DspChain.Gain gain;
 
         public VolumeControlDecorator(MusicPlayer musicPlayer, int volume) {
             super(musicPlayer);
             this.volume = volume;
+            this.gain = new DspChain.Gain(volume);
         }
 
         public void setVolume(int volume) {
             this.volume = volume;
+            gain.setVolume(volume);
             System.out.println("Volume set to: " + volume);
         }
 
         @Override
-        public void play() {
-            super.play();
+        protected DspChain.Stage getDspStage() {
+            return gain;
+        }
+
+        @Override
+        protected void start() {
+            super.start();
             setVolume(volume);
         }
     }
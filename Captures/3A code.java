@@ -1,4 +1,25 @@
 // MusicStreamingApp.java
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
 public class MusicStreamingApp {
 
     // MusicPlayer interface (Abstraction in Bridge Pattern)
@@ -6,16 +27,35 @@ public class MusicStreamingApp {
         void play();
         void stop();
         void pause();
+
+        // Installs effects, innermost first, on whatever produces the audio
+        default void applyDsp(List<DspChain.Stage> stages) {
+        }
     }
 
     // MusicSource interface (Implementor in Bridge Pattern)
     public interface MusicSource {
         String getSourceInfo();
+
+        // Playback control, for sources that produce audio
+        default void start() {
+        }
+
+        default void pause() {
+        }
+
+        default void stop() {
+        }
+
+        default void applyDsp(List<DspChain.Stage> stages) {
+        }
     }
 
     // LocalFileSource class (Concrete Implementor)
     public static class LocalFileSource implements MusicSource {
         private String filePath;
+        private PcmPipeline pipeline;
+        private IOException pipelineFailure;
 
         public LocalFileSource(String filePath) {
             this.filePath = filePath;
@@ -25,20 +65,102 @@ public class MusicStreamingApp {
         public String getSourceInfo() {
             return "Local file: " + filePath;
         }
+
+        @Override
+        public void start() {
+            if (getPipeline() != null) {
+                pipeline.play();
+            }
+        }
+
+        @Override
+        public void pause() {
+            if (pipeline != null) {
+                pipeline.pause();
+            }
+        }
+
+        @Override
+        public void stop() {
+            if (pipeline != null) {
+                pipeline.stop();
+            }
+        }
+
+        @Override
+        public void applyDsp(List<DspChain.Stage> stages) {
+            if (getPipeline() != null) {
+                pipeline.setProcessor(stages.isEmpty() ? null : new DspChain(stages));
+            }
+        }
+
+        // Maps the file on first use; null if it is missing or not WAV/PCM,
+        // in which case it is not tried again
+        public PcmPipeline getPipeline() {
+            if (pipeline == null && pipelineFailure == null) {
+                try {
+                    pipeline = new PcmPipeline(Paths.get(filePath), new PcmPipeline.PeakMeterSink());
+                } catch (IOException e) {
+                    pipelineFailure = e;
+                }
+            }
+            return pipeline;
+        }
+
+        // Why the file could not be played, or null
+        public IOException getPipelineFailure() {
+            return pipelineFailure;
+        }
     }
 
     // OnlineStreamingSource class (Concrete Implementor)
     public static class OnlineStreamingSource implements MusicSource {
+        private static final int READ_AHEAD_SEGMENTS = 4;
+        private static final long SEGMENT_MILLIS = 2_000;
+
         private String url;
+        // Null when the source only describes the stream
+        private SegmentFetcher.Playback playback;
 
         public OnlineStreamingSource(String url) {
             this.url = url;
         }
 
+        // Streams segments through the fetcher's read-ahead and disk cache
+        public OnlineStreamingSource(String url, SegmentFetcher fetcher) {
+            this.url = url;
+            this.playback = new SegmentFetcher.Playback(fetcher, url, READ_AHEAD_SEGMENTS, SEGMENT_MILLIS);
+        }
+
         @Override
         public String getSourceInfo() {
             return "Online stream: " + url;
         }
+
+        @Override
+        public void start() {
+            if (playback != null) {
+                playback.play();
+            }
+        }
+
+        @Override
+        public void pause() {
+            if (playback != null) {
+                playback.pause();
+            }
+        }
+
+        @Override
+        public void stop() {
+            if (playback != null) {
+                playback.stop();
+            }
+        }
+
+        public SegmentFetcher.Playback getPlayback() {
+            return playback;
+        }
     }
 
     // RadioSource class (Concrete Implementor)
@@ -66,30 +188,73 @@ public class MusicStreamingApp {
         @Override
         public void play() {
             System.out.println("Playing " + musicSource.getSourceInfo());
+            musicSource.start();
         }
 
         @Override
         public void stop() {
             System.out.println("Stopped " + musicSource.getSourceInfo());
+            musicSource.stop();
         }
 
         @Override
         public void pause() {
             System.out.println("Paused " + musicSource.getSourceInfo());
+            musicSource.pause();
+        }
+
+        @Override
+        public void applyDsp(List<DspChain.Stage> stages) {
+            musicSource.applyDsp(stages);
         }
     }
 
     // MusicPlayerDecorator abstract class (Decorator Pattern)
     public abstract static class MusicPlayerDecorator implements MusicPlayer {
         protected MusicPlayer musicPlayer;
+        private boolean dspInstalled;
 
         public MusicPlayerDecorator(MusicPlayer musicPlayer) {
             this.musicPlayer = musicPlayer;
         }
 
+        // The effect this decorator adds to the audio, or null
+        protected DspChain.Stage getDspStage() {
+            return null;
+        }
+
+        // Adds this decorator's effect ahead of the outer ones and passes the
+        // chain inward, so the player runs the whole stack as one fused pass
+        @Override
+        public void applyDsp(List<DspChain.Stage> stages) {
+            List<DspChain.Stage> chain = new ArrayList<>();
+            if (getDspStage() != null) {
+                chain.add(getDspStage());
+            }
+            chain.addAll(stages);
+            musicPlayer.applyDsp(chain);
+        }
+
+        // Only the outermost decorator installs the chain, and only on the
+        // first play, so playing again keeps the filters' state. It goes in
+        // before the player starts so the opening blocks are processed too.
         @Override
         public void play() {
-            musicPlayer.play();
+            if (!dspInstalled) {
+                dspInstalled = true;
+                applyDsp(new ArrayList<>());
+            }
+            start();
+        }
+
+        // Starts the wrapped player, going through inner decorators without
+        // letting them install chains of their own
+        protected void start() {
+            if (musicPlayer instanceof MusicPlayerDecorator) {
+                ((MusicPlayerDecorator) musicPlayer).start();
+            } else {
+                musicPlayer.play();
+            }
         }
 
         @Override
@@ -105,17 +270,25 @@ public class MusicStreamingApp {
 
     // EqualizerDecorator class
     public static class EqualizerDecorator extends MusicPlayerDecorator {
+        private final DspChain.Equalizer equalizer = new DspChain.Equalizer();
+
         public EqualizerDecorator(MusicPlayer musicPlayer) {
             super(musicPlayer);
         }
 
         public void setEqualizer(String setting) {
             System.out.println("Setting equalizer to: " + setting);
+            equalizer.setPreset(setting);
         }
 
         @Override
-        public void play() {
-            super.play();
+        protected DspChain.Stage getDspStage() {
+            return equalizer;
+        }
+
+        @Override
+        protected void start() {
+            super.start();
             setEqualizer("Flat");
         }
     }
@@ -123,24 +296,318 @@ public class MusicStreamingApp {
     // VolumeControlDecorator class
     public static class VolumeControlDecorator extends MusicPlayerDecorator {
         private int volume;
+        private final DspChain.Gain gain;
 
         public VolumeControlDecorator(MusicPlayer musicPlayer, int volume) {
             super(musicPlayer);
             this.volume = volume;
+            this.gain = new DspChain.Gain(volume);
         }
 
         public void setVolume(int volume) {
             this.volume = volume;
+            gain.setVolume(volume);
             System.out.println("Volume set to: " + volume);
         }
 
         @Override
-        public void play() {
-            super.play();
+        protected DspChain.Stage getDspStage() {
+            return gain;
+        }
+
+        @Override
+        protected void start() {
+            super.start();
             setVolume(volume);
         }
     }
 
+    // SegmentCache class: decoded audio shared by every listener. Tracks are
+    // cut into fixed-length segments; the first listener to need a segment
+    // decodes it and everyone else waiting for it shares the same future.
+    // The cache holds a bounded number of segments and evicts with CLOCK:
+    // each read marks a segment, and the sweep removes unmarked segments
+    // while clearing marks on the rest.
+    public static class SegmentCache {
+        // Stand-in for a codec: produces one segment of interleaved 16-bit PCM
+        public interface Decoder {
+            short[] decode(int track, int segment);
+        }
+
+        private static final class Entry {
+            final CompletableFuture<short[]> pcm = new CompletableFuture<>();
+            volatile boolean referenced = true;
+        }
+
+        private final Decoder decoder;
+        private final int maxSegments;
+        private final ConcurrentHashMap<Long, Entry> segments = new ConcurrentHashMap<>();
+        private final ReentrantLock sweepLock = new ReentrantLock();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder decodes = new LongAdder();
+
+        public SegmentCache(Decoder decoder, int maxSegments) {
+            this.decoder = decoder;
+            this.maxSegments = maxSegments;
+        }
+
+        public short[] get(int track, int segment) {
+            Long key = (long) track << 32 | segment;
+            Entry entry = segments.get(key);
+            if (entry == null) {
+                Entry created = new Entry();
+                entry = segments.putIfAbsent(key, created);
+                if (entry == null) {
+                    decodes.increment();
+                    try {
+                        created.pcm.complete(decoder.decode(track, segment));
+                    } catch (RuntimeException e) {
+                        segments.remove(key, created);
+                        created.pcm.completeExceptionally(e);
+                    }
+                    if (segments.size() > maxSegments) {
+                        sweep();
+                    }
+                    return created.pcm.join();
+                }
+            }
+            hits.increment();
+            entry.referenced = true;
+            return entry.pcm.join();
+        }
+
+        // Only one thread sweeps; others carry on rather than wait for it.
+        // Two passes at most: the first may only clear marks, the second then
+        // evicts. Segments still decoding cannot go, so while more than the
+        // budget are in flight the cache stays over it until a later sweep.
+        private void sweep() {
+            if (!sweepLock.tryLock()) {
+                return;
+            }
+            try {
+                for (int pass = 0; pass < 2 && segments.size() > maxSegments; pass++) {
+                    Iterator<Entry> entries = segments.values().iterator();
+                    while (entries.hasNext() && segments.size() > maxSegments) {
+                        Entry entry = entries.next();
+                        if (entry.referenced) {
+                            entry.referenced = false;
+                        } else if (entry.pcm.isDone()) {
+                            entries.remove();
+                        }
+                    }
+                }
+            } finally {
+                sweepLock.unlock();
+            }
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getDecodes() {
+            return decodes.sum();
+        }
+
+        public int size() {
+            return segments.size();
+        }
+    }
+
+    // StreamingEngine class: runs many listener sessions in one process.
+    // With virtual threads each session is a plain blocking loop on its own
+    // virtual thread. On runtimes without them, each session is a chain of
+    // tasks on a small scheduled pool that delivers one segment and schedules
+    // the next, so an idle session is only a pending timer.
+    public static class StreamingEngine implements AutoCloseable {
+        private final SegmentCache cache;
+        private final int segmentsPerTrack;
+        private final long segmentNanos;
+        private final ExecutorService virtualThreads = newVirtualThreadExecutor();
+        private final ScheduledExecutorService scheduler;
+        private final Map<String, Integer> trackIds = new ConcurrentHashMap<>();
+        private final AtomicInteger nextTrackId = new AtomicInteger();
+        private final LongAdder delivered = new LongAdder();
+        private final LongAdder late = new LongAdder();
+
+        public StreamingEngine(SegmentCache cache, int segmentsPerTrack, long segmentMillis) {
+            this.cache = cache;
+            this.segmentsPerTrack = segmentsPerTrack;
+            this.segmentNanos = segmentMillis * 1_000_000L;
+            if (virtualThreads != null) {
+                scheduler = null;
+            } else {
+                scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "listener-sessions");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+            }
+        }
+
+        // Listeners of the same source share one track id, and so one set of decoded segments
+        public ListenerSession open(MusicSource source) {
+            int track = trackIds.computeIfAbsent(source.getSourceInfo(), key -> nextTrackId.getAndIncrement());
+            return new ListenerSession(this, source, track);
+        }
+
+        public boolean usesVirtualThreads() {
+            return virtualThreads != null;
+        }
+
+        public long getDelivered() {
+            return delivered.sum();
+        }
+
+        // Segments delivered more than half a segment after they were due
+        public long getLate() {
+            return late.sum();
+        }
+
+        @Override
+        public void close() {
+            if (virtualThreads != null) {
+                virtualThreads.shutdownNow();
+            } else {
+                scheduler.shutdownNow();
+            }
+        }
+
+        private static ExecutorService newVirtualThreadExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+    }
+
+    // ListenerSession class: one listener, driven by the engine instead of a
+    // local audio device. Deliberately small, since there are many of them.
+    public static class ListenerSession extends BaseMusicPlayer {
+        private final StreamingEngine engine;
+        private final int track;
+        private volatile PcmPipeline.State state = PcmPipeline.State.STOPPED;
+        // Bumped whenever a new task chain or thread takes over the session
+        private volatile int generation;
+        private int segment;
+        private long due;
+        private long checksum;
+        private Thread thread;
+
+        ListenerSession(StreamingEngine engine, MusicSource source, int track) {
+            super(source);
+            this.engine = engine;
+            this.track = track;
+        }
+
+        @Override
+        public synchronized void play() {
+            if (state == PcmPipeline.State.PLAYING) {
+                return;
+            }
+            boolean resuming = state == PcmPipeline.State.PAUSED && thread != null;
+            state = PcmPipeline.State.PLAYING;
+            due = 0;
+            if (resuming) {
+                LockSupport.unpark(thread);
+                return;
+            }
+            int chain = ++generation;
+            if (engine.virtualThreads != null) {
+                engine.virtualThreads.execute(() -> loop(chain));
+            } else {
+                engine.scheduler.execute(() -> step(chain));
+            }
+        }
+
+        @Override
+        public synchronized void pause() {
+            if (state == PcmPipeline.State.PLAYING) {
+                state = PcmPipeline.State.PAUSED;
+                if (thread == null) {
+                    // Ends the task chain; play() starts a new one
+                    generation++;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void stop() {
+            state = PcmPipeline.State.STOPPED;
+            generation++;
+            segment = 0;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        public PcmPipeline.State getState() {
+            return state;
+        }
+
+        // Virtual thread mode: block between segments
+        private void loop(int chain) {
+            synchronized (this) {
+                thread = Thread.currentThread();
+            }
+            try {
+                while (generation == chain) {
+                    if (state == PcmPipeline.State.PAUSED) {
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    long wait = deliver();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    if (thread == Thread.currentThread()) {
+                        thread = null;
+                    }
+                }
+            }
+        }
+
+        // Scheduled mode: deliver, then schedule the next step
+        private void step(int chain) {
+            if (generation != chain || state != PcmPipeline.State.PLAYING) {
+                return;
+            }
+            long wait = deliver();
+            if (generation == chain) {
+                engine.scheduler.schedule(() -> step(chain), Math.max(0, wait), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        // Sends the next segment and returns how long until the one after is due
+        private long deliver() {
+            int next;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (due == 0) {
+                    due = now;
+                } else if (now - due > engine.segmentNanos / 2) {
+                    engine.late.increment();
+                }
+                next = segment;
+                segment = (segment + 1) % engine.segmentsPerTrack;
+                due += engine.segmentNanos;
+            }
+            // May wait on a decode, so not under the monitor that play, pause and stop need
+            short[] pcm = engine.cache.get(track, next);
+            engine.delivered.increment();
+            synchronized (this) {
+                // Stands in for writing the segment to the listener's connection
+                checksum += pcm[next % pcm.length];
+                return due - System.nanoTime();
+            }
+        }
+    }
+
     // Main method to demonstrate the application
     public static void main(String[] args) {
         // Create music sources
@@ -168,3 +635,104 @@ public class MusicStreamingApp {
         radioPlayer.pause();
     }
 }
+
+// Session density benchmark: opens growing numbers of listeners spread over
+// a catalogue with a few popular tracks, plays them in real time, and
+// reports late segments, decode sharing, CPU and heap per session.
+// Run with: java StreamingEngineBenchmark [maxSessions] [seconds]
+class StreamingEngineBenchmark {
+    private static final int SAMPLE_RATE = 44_100;
+    private static final int TRACKS = 100;
+    // Below this, heap the runtime itself churns between readings outweighs the sessions'
+    private static final int MIN_SESSIONS_FOR_HEAP = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int maxSessions = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+        for (int sessions = 1_000; sessions <= maxSessions; sessions *= sessions < 10_000 ? 10 : 5) {
+            // One second of 16-bit stereo per segment: three-minute tracks
+            MusicStreamingApp.SegmentCache cache = new MusicStreamingApp.SegmentCache(
+                    StreamingEngineBenchmark::decode, 512);
+            try (MusicStreamingApp.StreamingEngine engine = new MusicStreamingApp.StreamingEngine(cache, 180, 1_000)) {
+                List<MusicStreamingApp.ListenerSession> listeners = new ArrayList<>(sessions);
+                for (int i = 0; i < sessions; i++) {
+                    // Roughly Zipf: track k gets a share proportional to 1 / (k + 1)
+                    int track = (int) Math.floor(Math.pow(TRACKS + 1, (i * 0.618034) % 1)) - 1;
+                    listeners.add(engine.open(new MusicStreamingApp.OnlineStreamingSource(
+                            "https://example.com/tracks/" + track)));
+                }
+                long cpuBefore = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+                long begin = System.nanoTime();
+                for (MusicStreamingApp.ListenerSession listener : listeners) {
+                    listener.play();
+                }
+                Thread.sleep(seconds * 1_000L);
+                double wall = (System.nanoTime() - begin) / 1e9;
+                long cpu = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() - cpuBefore;
+                for (MusicStreamingApp.ListenerSession listener : listeners) {
+                    listener.stop();
+                }
+                // Heap retained by the sessions: settled usage with and without
+                // them, once steps already scheduled have run and let go of them.
+                // The decoded segments stay in the cache for both readings.
+                String heap = "heap per session not measured";
+                if (sessions >= MIN_SESSIONS_FOR_HEAP) {
+                    Thread.sleep(1_500);
+                    long withSessions = retainedHeap();
+                    listeners.clear();
+                    heap = String.format("%,d bytes heap per session", (withSessions - retainedHeap()) / sessions);
+                }
+
+                long delivered = engine.getDelivered();
+                System.out.printf("%,7d sessions (%s): %,d segments, %.2f%% late, %,d decodes (%.1f%% shared),"
+                        + " CPU %.1f%% of a core, %s%n",
+                        sessions, engine.usesVirtualThreads() ? "virtual threads" : "scheduled tasks",
+                        delivered, 100.0 * engine.getLate() / Math.max(1, delivered), cache.getDecodes(),
+                        100.0 * cache.getHits() / Math.max(1, cache.getHits() + cache.getDecodes()),
+                        100.0 * cpu / 1e9 / wall, heap);
+            }
+        }
+    }
+
+    // Heap that survives full collections: the lowest reading once three
+    // collections in a row have not lowered it, since objects reachable only
+    // through references still being processed can take a few to go. Eden
+    // is left out: right after a collection it holds little but the fresh
+    // allocation buffers threads have claimed, which count as used in full
+    // and can be megabytes each.
+    private static long retainedHeap() throws InterruptedException {
+        long lowest = Long.MAX_VALUE;
+        for (int i = 0, unchanged = 0; i < 20 && unchanged < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && !pool.getName().contains("Eden")) {
+                    used += pool.getUsage().getUsed();
+                }
+            }
+            if (used < lowest - 16 * 1024) {
+                unchanged = 0;
+            } else {
+                unchanged++;
+            }
+            lowest = Math.min(lowest, used);
+        }
+        return lowest;
+    }
+
+    // Synthetic decode: a tone per track, costing about what a real decoder would per second of audio
+    private static short[] decode(int track, int segment) {
+        short[] pcm = new short[SAMPLE_RATE * 2];
+        double step = 2 * Math.PI * (220 + track) / SAMPLE_RATE;
+        double phase = (double) segment * SAMPLE_RATE * step;
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            short sample = (short) (Math.sin(phase + i * step) * 12_000);
+            pcm[2 * i] = sample;
+            pcm[2 * i + 1] = sample;
+        }
+        return pcm;
+    }
+}
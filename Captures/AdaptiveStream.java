@@ -0,0 +1,363 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+// Adaptive Stream: plays a stream offered in several bitrate variants
+// (<url>/<kbps>k/<n>.seg) through a jitter buffer. A download thread fills
+// the buffer one segment at a time while a playback thread drains it one
+// segment per segment duration; when the buffer runs dry playback stops
+// to rebuffer until it is back at its target.
+//
+// The target follows observed delivery time the way TCP sizes its
+// retransmission timeout: a smoothed mean plus four times the smoothed
+// deviation, rounded up to whole segments, plus one segment of margin.
+// The variant follows a conservative throughput estimate (the lower of a
+// fast and a slow moving average), drops at once when the buffer falls
+// below half its target, and only steps up one variant at a time while the
+// buffer is at target.
+public class AdaptiveStream implements SegmentFetcher.StreamControl {
+    private static final int MAX_TARGET_SEGMENTS = 8;
+    private static final double THROUGHPUT_SAFETY = 0.8;
+
+    private final SegmentFetcher fetcher;
+    private final String url;
+    private final int[] variantsKbps;
+    private final long segmentNanos;
+    private final boolean adaptive;
+    private final ConcurrentLinkedQueue<Integer> buffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger buffered = new AtomicInteger();
+
+    private volatile PcmPipeline.State state = PcmPipeline.State.STOPPED;
+    private volatile boolean endOfStream;
+    private volatile boolean rebuffering;
+    private volatile int targetSegments = 1;
+    private Thread downloader;
+    private Thread player;
+
+    // Written by the download thread
+    private double smoothedDelivery;
+    private double deliveryDeviation;
+    private double fastThroughput;
+    private double slowThroughput;
+    private int variant;
+
+    // Metrics
+    private volatile long startupNanos = -1;
+    private volatile int rebuffers;
+    private volatile long rebufferNanos;
+    private volatile int switches;
+    private volatile int segmentsPlayed;
+    private volatile long playedKbps;
+
+    // Variants in ascending bitrate
+    public AdaptiveStream(SegmentFetcher fetcher, String url, int[] variantsKbps, long segmentMillis) {
+        this(fetcher, url, variantsKbps, segmentMillis, true);
+    }
+
+    // With adaptive false: always the top variant and a one-segment buffer, for comparison
+    AdaptiveStream(SegmentFetcher fetcher, String url, int[] variantsKbps, long segmentMillis, boolean adaptive) {
+        this.fetcher = fetcher;
+        this.url = url;
+        this.variantsKbps = variantsKbps.clone();
+        this.segmentNanos = segmentMillis * 1_000_000L;
+        this.adaptive = adaptive;
+    }
+
+    @Override
+    public synchronized void play() {
+        if (state == PcmPipeline.State.PAUSED) {
+            state = PcmPipeline.State.PLAYING;
+            LockSupport.unpark(player);
+            LockSupport.unpark(downloader);
+            return;
+        }
+        if (state == PcmPipeline.State.PLAYING) {
+            return;
+        }
+        join();
+        buffer.clear();
+        buffered.set(0);
+        endOfStream = false;
+        rebuffering = false;
+        startupNanos = -1;
+        rebuffers = 0;
+        rebufferNanos = 0;
+        switches = 0;
+        segmentsPlayed = 0;
+        playedKbps = 0;
+        // Start on the lowest variant so the first segment arrives quickly
+        variant = adaptive ? 0 : variantsKbps.length - 1;
+        targetSegments = 1;
+        smoothedDelivery = 0;
+        deliveryDeviation = 0;
+        fastThroughput = 0;
+        slowThroughput = 0;
+        state = PcmPipeline.State.PLAYING;
+        long requested = System.nanoTime();
+        downloader = new Thread(this::download, "adaptive-download " + url);
+        player = new Thread(() -> playBuffer(requested), "adaptive-play " + url);
+        downloader.setDaemon(true);
+        player.setDaemon(true);
+        downloader.start();
+        player.start();
+    }
+
+    @Override
+    public synchronized void pause() {
+        if (state == PcmPipeline.State.PLAYING) {
+            state = PcmPipeline.State.PAUSED;
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        state = PcmPipeline.State.STOPPED;
+        join();
+    }
+
+    // Blocks until the stream has played to its end or is stopped
+    public void awaitEnd() throws InterruptedException {
+        Thread playing;
+        synchronized (this) {
+            playing = player;
+        }
+        if (playing != null) {
+            playing.join();
+        }
+    }
+
+    public PcmPipeline.State getState() {
+        return state;
+    }
+
+    public boolean isRebuffering() {
+        return rebuffering;
+    }
+
+    // Time from play() until the first segment started playing, or -1
+    public long getStartupNanos() {
+        return startupNanos;
+    }
+
+    public int getRebuffers() {
+        return rebuffers;
+    }
+
+    public long getRebufferNanos() {
+        return rebufferNanos;
+    }
+
+    public int getSwitches() {
+        return switches;
+    }
+
+    public int getSegmentsPlayed() {
+        return segmentsPlayed;
+    }
+
+    public double getAverageKbps() {
+        int played = segmentsPlayed;
+        return played == 0 ? 0 : (double) playedKbps / played;
+    }
+
+    public int getTargetSegments() {
+        return targetSegments;
+    }
+
+    private void join() {
+        for (Thread thread : new Thread[] {downloader, player}) {
+            if (thread == null) {
+                continue;
+            }
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        downloader = null;
+        player = null;
+    }
+
+    private void download() {
+        int segment = 0;
+        while (state != PcmPipeline.State.STOPPED) {
+            // Keep a few segments beyond the target in hand, but no more; the
+            // fixed comparison holds exactly its one segment
+            int cap = adaptive ? targetSegments + 2 : targetSegments;
+            if (state == PcmPipeline.State.PAUSED || buffered.get() >= cap) {
+                LockSupport.parkNanos(segmentNanos / 8);
+                if (Thread.interrupted()) {
+                    return;
+                }
+                continue;
+            }
+            int kbps = variantsKbps[variant];
+            long begin = System.nanoTime();
+            byte[] data;
+            try {
+                data = fetcher.fetch(url + "/" + kbps + "k", segment).get();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ExecutionException e) {
+                System.err.println("Stream " + url + " failed: " + e.getCause());
+                break;
+            }
+            if (data == null) {
+                break;
+            }
+            observe(System.nanoTime() - begin, data.length);
+            buffer.add(kbps);
+            buffered.incrementAndGet();
+            segment++;
+            if (adaptive) {
+                int next = chooseVariant();
+                if (next != variant) {
+                    variant = next;
+                    switches++;
+                }
+            }
+        }
+        endOfStream = true;
+    }
+
+    private void observe(long deliveryNanos, int bytes) {
+        double delivery = deliveryNanos;
+        double throughput = bytes * 1e9 / Math.max(1, deliveryNanos);
+        if (smoothedDelivery == 0) {
+            smoothedDelivery = delivery;
+            deliveryDeviation = delivery / 2;
+            fastThroughput = throughput;
+            slowThroughput = throughput;
+        } else {
+            deliveryDeviation += (Math.abs(delivery - smoothedDelivery) - deliveryDeviation) / 4;
+            smoothedDelivery += (delivery - smoothedDelivery) / 8;
+            fastThroughput += (throughput - fastThroughput) / 2;
+            slowThroughput += (throughput - slowThroughput) / 10;
+        }
+        if (adaptive) {
+            double worstDelivery = smoothedDelivery + 4 * deliveryDeviation;
+            int target = (int) Math.ceil(worstDelivery / segmentNanos) + 1;
+            targetSegments = Math.max(1, Math.min(MAX_TARGET_SEGMENTS, target));
+        }
+    }
+
+    private int chooseVariant() {
+        double budgetKbps = Math.min(fastThroughput, slowThroughput) * 8 / 1_000 * THROUGHPUT_SAFETY;
+        int affordable = 0;
+        while (affordable + 1 < variantsKbps.length && variantsKbps[affordable + 1] <= budgetKbps) {
+            affordable++;
+        }
+        int level = buffered.get();
+        if (level * 2 < targetSegments) {
+            return Math.min(affordable, Math.max(0, variant - 1));
+        }
+        if (affordable > variant) {
+            return level >= targetSegments ? variant + 1 : variant;
+        }
+        return affordable;
+    }
+
+    private void playBuffer(long requested) {
+        // Startup and rebuffering both wait for the buffer to reach its target
+        if (!fill()) {
+            return;
+        }
+        startupNanos = System.nanoTime() - requested;
+        while (state != PcmPipeline.State.STOPPED) {
+            if (state == PcmPipeline.State.PAUSED) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    return;
+                }
+                continue;
+            }
+            Integer kbps = buffer.poll();
+            if (kbps == null) {
+                if (endOfStream && buffer.isEmpty()) {
+                    break;
+                }
+                rebuffers++;
+                long begin = System.nanoTime();
+                rebuffering = true;
+                boolean filled = fill();
+                rebuffering = false;
+                rebufferNanos += System.nanoTime() - begin;
+                if (!filled) {
+                    return;
+                }
+                continue;
+            }
+            buffered.decrementAndGet();
+            segmentsPlayed++;
+            playedKbps += kbps;
+            LockSupport.parkNanos(segmentNanos);
+            if (Thread.interrupted()) {
+                return;
+            }
+        }
+        state = PcmPipeline.State.STOPPED;
+    }
+
+    // False if stopped while waiting
+    private boolean fill() {
+        while (buffered.get() < targetSegments && !endOfStream) {
+            LockSupport.parkNanos(2_000_000L);
+            if (Thread.interrupted() || state == PcmPipeline.State.STOPPED) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// Jitter buffer benchmark against the local origin with injected delay:
+// the same stream played with a fixed top bitrate and one-segment buffer,
+// then adaptively, while the origin's bandwidth drops part way through.
+// Run with: java AdaptiveStreamBenchmark [segments]
+class AdaptiveStreamBenchmark {
+    private static final int[] VARIANTS = {64, 128, 256, 320};
+    private static final long SEGMENT_MILLIS = 1_000;
+
+    public static void main(String[] args) throws Exception {
+        int segments = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        Path dir = Files.createTempDirectory("adaptive-cache");
+        try (StubSegmentServer origin = new StubSegmentServer(segments, 64 * 1024, SEGMENT_MILLIS / 1_000.0);
+                SegmentFetcher fetcher = new SegmentFetcher(new SegmentFetcher.DiskCache(dir, 64L << 20))) {
+            origin.setLatency(40, 200);
+            run("fixed 320k, 1 segment", new AdaptiveStream(fetcher, origin.url("fixed"), VARIANTS,
+                    SEGMENT_MILLIS, false), origin, segments);
+            run("adaptive", new AdaptiveStream(fetcher, origin.url("adaptive"), VARIANTS,
+                    SEGMENT_MILLIS), origin, segments);
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    // 384 kbit/s for the first third of the stream, then 160 kbit/s
+    private static void run(String name, AdaptiveStream stream, StubSegmentServer origin, int segments)
+            throws InterruptedException {
+        origin.setBandwidth(48_000);
+        long begin = System.nanoTime();
+        stream.play();
+        Thread.sleep(segments * SEGMENT_MILLIS / 3);
+        origin.setBandwidth(20_000);
+        stream.awaitEnd();
+        stream.stop();
+        System.out.printf("%-22s startup %4.0f ms, %2d rebuffers (%5.0f ms), %2d switches, %3.0f kbps average,"
+                + " target %d segments, %.1f s for %.1f s of audio%n",
+                name, stream.getStartupNanos() / 1e6, stream.getRebuffers(), stream.getRebufferNanos() / 1e6,
+                stream.getSwitches(), stream.getAverageKbps(), stream.getTargetSegments(),
+                (System.nanoTime() - begin) / 1e9, stream.getSegmentsPlayed() * SEGMENT_MILLIS / 1e3);
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous Audit Log: producers claim a slot in a bounded ring buffer,
+// fill in primitive fields and references they already hold, and publish it.
+// A single background thread drains the ring in batches and writes them to
+// a local file, so callers never format strings or wait on file I/O.
+public class AuditLog {
+    // Kinds of audited actions
+    public enum Event {
+        LOGIN(false), LOGIN_FAILED(false), LOGIN_THROTTLED(false), LOGOUT(false), SESSION_EXPIRED(false),
+        DEPOSIT(true), WITHDRAW(true), TRANSFER(true), BATCH(true);
+
+        // Whether the event carries an amount: cents, or the applied item count for BATCH
+        final boolean monetary;
+
+        Event(boolean monetary) {
+            this.monetary = monetary;
+        }
+    }
+
+    // What a producer does when the ring buffer is full
+    public enum Backpressure {
+        BLOCK, DROP
+    }
+
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int MAX_BATCH = 4_096;
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+    // Pre-allocated, reused event slots
+    private static final class Slot {
+        Event event;
+        long timeMillis;
+        String subject;
+        String counterparty;
+        long amountCents;
+    }
+
+    private final Slot[] ring;
+    private final int mask;
+    private final Backpressure policy;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLongArray published;
+    private final LongAdder dropped = new LongAdder();
+    private final BufferedWriter out;
+    private final Thread consumer;
+    private volatile long consumed;
+    private volatile boolean running = true;
+
+    // Holder idiom: the shared log is created on first use
+    private static class Holder {
+        private static final AuditLog INSTANCE = create();
+
+        private static AuditLog create() {
+            try {
+                AuditLog log = new AuditLog(Paths.get(System.getProperty("audit.file", "audit.log")),
+                        DEFAULT_CAPACITY, Backpressure.valueOf(System.getProperty("audit.policy", "BLOCK")));
+                Runtime.getRuntime().addShutdownHook(new Thread(log::close, "audit-log-shutdown"));
+                return log;
+            } catch (IOException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+    }
+
+    public static AuditLog getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    public AuditLog(Path file, int capacity, Backpressure policy) throws IOException {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        ring = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Slot();
+        }
+        mask = capacity - 1;
+        this.policy = policy;
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        consumer = new Thread(this::drain, "audit-log");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    public boolean record(Event event, String subject) {
+        return record(event, subject, null, 0);
+    }
+
+    public boolean record(Event event, String subject, long amountCents) {
+        return record(event, subject, null, amountCents);
+    }
+
+    // Returns false if the event was dropped because the ring was full
+    public boolean record(Event event, String subject, String counterparty, long amountCents) {
+        if (!running) {
+            dropped.increment();
+            return false;
+        }
+        long seq;
+        while (true) {
+            seq = claimed.get();
+            if (seq - consumed >= ring.length) {
+                if (policy == Backpressure.DROP || !running) {
+                    dropped.increment();
+                    return false;
+                }
+                LockSupport.parkNanos(1_000);
+                continue;
+            }
+            if (claimed.compareAndSet(seq, seq + 1)) {
+                break;
+            }
+        }
+        Slot slot = ring[(int) (seq & mask)];
+        slot.event = event;
+        slot.timeMillis = System.currentTimeMillis();
+        slot.subject = subject;
+        slot.counterparty = counterparty;
+        slot.amountCents = amountCents;
+        // Release store: the consumer sees the slot fields once it sees this
+        published.lazySet((int) (seq & mask), seq);
+        return true;
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    // Stops accepting events, writes out everything already published and closes the file
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(128);
+        long next = 0;
+        try {
+            while (true) {
+                int batch = 0;
+                while (batch < MAX_BATCH && published.get((int) (next & mask)) == next) {
+                    Slot slot = ring[(int) (next & mask)];
+                    line.setLength(0);
+                    line.append(slot.timeMillis).append(' ').append(slot.event).append(' ').append(slot.subject);
+                    if (slot.counterparty != null) {
+                        line.append(' ').append(slot.counterparty);
+                    }
+                    if (slot.event.monetary) {
+                        line.append(' ').append(slot.amountCents);
+                    }
+                    line.append('\n');
+                    out.append(line);
+                    slot.subject = null;
+                    slot.counterparty = null;
+                    next++;
+                    batch++;
+                }
+                if (batch > 0) {
+                    consumed = next;
+                    out.flush();
+                } else if (!running && next == claimed.get()) {
+                    break;
+                } else {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Audit log stopped: " + e);
+            running = false;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.err.println("Could not close audit log: " + e);
+            }
+        }
+    }
+}
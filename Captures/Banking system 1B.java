@@ -1,3 +1,38 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
 // Singleton Pattern: Game State Management
 class Game {
     private static Game instance;
@@ -35,6 +70,30 @@ class Game {
     public void startGame() {
         System.out.println("Starting game at " + currentLevel + " with " + difficulty + " difficulty.");
     }
+
+    // Everything the simulation updates each tick
+    private final GameWorld world = new GameWorld();
+
+    public GameWorld getWorld() {
+        return world;
+    }
+
+    // Captures the game on the calling thread without copying the enemy
+    // arrays and writes the snapshot in the background
+    public CompletableFuture<Path> save(Path file) {
+        return GameSave.saveAsync(this, file);
+    }
+
+    // Restores a snapshot written by save(); the enemy data is read from the
+    // mapped file here, not when the file is opened
+    public void load(Path file) throws IOException {
+        GameSave.open(file).restore(this);
+    }
+
+    // Fixed-timestep loop over the world with the standard systems
+    public GameLoop createLoop(int ticksPerSecond) {
+        return GameLoop.withDefaultSystems(world, ticksPerSecond);
+    }
 }
 
 // Factory Method Pattern: Enemy Creation
@@ -56,75 +115,2044 @@ class Orc implements Enemy {
 
 abstract class EnemyFactory {
     public abstract Enemy createEnemy();
+
+    // Which kind of enemy this factory spawns into an EnemyStore
+    public abstract EnemyKind getKind();
+
+    public static EnemyFactory forKind(EnemyKind kind) {
+        switch (kind) {
+            case GOBLIN:
+                return new GoblinFactory();
+            case ORC:
+                return new OrcFactory();
+            default:
+                throw new IllegalArgumentException("No factory for " + kind);
+        }
+    }
+
+    // Bulk spawn: count enemies scattered within radius of (x, y), written
+    // straight into the store's arrays; returns the index of the first one
+    public int spawn(EnemyStore store, int count, float x, float y, float radius) {
+        return store.spawn(getKind(), count, x, y, radius);
+    }
 }
 
 class GoblinFactory extends EnemyFactory {
     public Enemy createEnemy() {
         return new Goblin();
     }
+
+    public EnemyKind getKind() {
+        return EnemyKind.GOBLIN;
+    }
 }
 
 class OrcFactory extends EnemyFactory {
     public Enemy createEnemy() {
         return new Orc();
     }
+
+    public EnemyKind getKind() {
+        return EnemyKind.ORC;
+    }
 }
 
-// Abstract Factory Pattern: Weapon and Power-Up Creation
-interface Weapon {
-    void use();
+// Per-kind enemy stats
+enum EnemyKind {
+    GOBLIN(30, 2.0f, 1.0f, 20, 4),
+    ORC(80, 1.2f, 1.5f, 40, 10);
+
+    final int maxHealth;
+    final float speed;
+    final float attackRange;
+    final int attackCooldownTicks;
+    final int attackDamage;
+
+    EnemyKind(int maxHealth, float speed, float attackRange, int attackCooldownTicks, int attackDamage) {
+        this.maxHealth = maxHealth;
+        this.speed = speed;
+        this.attackRange = attackRange;
+        this.attackCooldownTicks = attackCooldownTicks;
+        this.attackDamage = attackDamage;
+    }
+
+    static float maxAttackRange() {
+        float range = 0;
+        for (EnemyKind kind : values()) {
+            range = Math.max(range, kind.attackRange);
+        }
+        return range;
+    }
 }
 
-class Sword implements Weapon {
-    public void use() {
-        System.out.println("Swinging sword!");
+// Struct-of-Arrays Entity Store: every enemy is an index into parallel
+// primitive arrays instead of an object, so spawning is a few array writes
+// and a tick is a linear walk over memory with no allocation or virtual calls.
+// Dead enemies are removed by moving the last enemy into their slot.
+class EnemyStore {
+    private static final EnemyKind[] KINDS = EnemyKind.values();
+
+    // Kind stats copied into arrays so the update loop does not touch enum objects
+    private static final float[] SPEED = new float[KINDS.length];
+    private static final float[] RANGE_SQUARED = new float[KINDS.length];
+    private static final int[] COOLDOWN = new int[KINDS.length];
+    private static final int[] DAMAGE = new int[KINDS.length];
+
+    static {
+        for (EnemyKind kind : KINDS) {
+            SPEED[kind.ordinal()] = kind.speed;
+            RANGE_SQUARED[kind.ordinal()] = kind.attackRange * kind.attackRange;
+            COOLDOWN[kind.ordinal()] = kind.attackCooldownTicks;
+            DAMAGE[kind.ordinal()] = kind.attackDamage;
+        }
+    }
+
+    // Readers of share() still using the current arrays (low bits) and which
+    // arrays those are (high bits). While there are readers the next write
+    // copies the arrays first; once the last one releases them, writes go
+    // back to updating them in place.
+    private static final int READER_BITS = 20;
+    private static final long READER_MASK = (1L << READER_BITS) - 1;
+
+    private int count;
+    private long seed = 0x9E3779B97F4A7C15L;
+    private final AtomicLong sharing = new AtomicLong();
+    // Bumped by every change to positions or membership, so derived data such
+    // as a CollisionGrid can tell whether it is still current
+    private long modifications;
+    byte[] kind;
+    int[] health;
+    float[] x;
+    float[] y;
+    int[] cooldown;
+
+    public EnemyStore(int initialCapacity) {
+        int capacity = Math.max(16, initialCapacity);
+        kind = new byte[capacity];
+        health = new int[capacity];
+        x = new float[capacity];
+        y = new float[capacity];
+        cooldown = new int[capacity];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long getModifications() {
+        return modifications;
+    }
+
+    public int spawn(EnemyKind enemyKind, int spawnCount, float centerX, float centerY, float radius) {
+        unshare();
+        modifications++;
+        ensureCapacity(count + spawnCount);
+        int first = count;
+        byte kindId = (byte) enemyKind.ordinal();
+        for (int i = first; i < first + spawnCount; i++) {
+            kind[i] = kindId;
+            health[i] = enemyKind.maxHealth;
+            x[i] = centerX + (nextUnit() * 2 - 1) * radius;
+            y[i] = centerY + (nextUnit() * 2 - 1) * radius;
+            cooldown[i] = 0;
+        }
+        count += spawnCount;
+        return first;
+    }
+
+    // One tick: every enemy moves toward the target and attacks it when in
+    // range and off cooldown. Returns the total damage dealt this tick.
+    public int update(float dt, float targetX, float targetY) {
+        unshare();
+        modifications++;
+        int damage = 0;
+        for (int i = 0; i < count; i++) {
+            int k = kind[i];
+            float dx = targetX - x[i];
+            float dy = targetY - y[i];
+            float distanceSquared = dx * dx + dy * dy;
+            if (distanceSquared <= RANGE_SQUARED[k]) {
+                if (cooldown[i] <= 0) {
+                    damage += DAMAGE[k];
+                    cooldown[i] = COOLDOWN[k];
+                } else {
+                    cooldown[i]--;
+                }
+            } else {
+                float step = SPEED[k] * dt / (float) Math.sqrt(distanceSquared);
+                x[i] += dx * step;
+                y[i] += dy * step;
+                if (cooldown[i] > 0) {
+                    cooldown[i]--;
+                }
+            }
+        }
+        return damage;
+    }
+
+    // Applies damage to one enemy, removing it if it dies; returns true on a kill
+    public boolean damage(int index, int amount) {
+        unshare();
+        health[index] -= amount;
+        if (health[index] > 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    // Swap-remove: the last enemy takes this index
+    public void remove(int index) {
+        unshare();
+        modifications++;
+        int last = --count;
+        kind[index] = kind[last];
+        health[index] = health[last];
+        x[index] = x[last];
+        y[index] = y[last];
+        cooldown[index] = cooldown[last];
+    }
+
+    public void clear() {
+        count = 0;
+        modifications++;
+    }
+
+    public EnemyKind kindAt(int index) {
+        return KINDS[kind[index]];
+    }
+
+    public float xAt(int index) {
+        return x[index];
+    }
+
+    public float yAt(int index) {
+        return y[index];
+    }
+
+    public int healthAt(int index) {
+        return health[index];
+    }
+
+    // Hands out the live arrays without copying. They stay valid for the
+    // reader because the store copies them before its next write, until the
+    // reader hands them back with release().
+    public EnemyColumns share() {
+        long generation = sharing.incrementAndGet() >>> READER_BITS;
+        return new EnemyColumns(count, kind, health, x, y, cooldown, generation);
+    }
+
+    // May be called from any thread; a reader whose arrays were already
+    // copied away is ignored
+    public void release(EnemyColumns columns) {
+        while (true) {
+            long state = sharing.get();
+            if (state >>> READER_BITS != columns.generation || (state & READER_MASK) == 0) {
+                return;
+            }
+            if (sharing.compareAndSet(state, state - 1)) {
+                return;
+            }
+        }
+    }
+
+    // Takes ownership of loaded arrays
+    public void restore(EnemyColumns columns) {
+        count = columns.count;
+        kind = columns.kind;
+        health = columns.health;
+        x = columns.x;
+        y = columns.y;
+        cooldown = columns.cooldown;
+        modifications++;
+        nextGeneration(sharing.get());
+    }
+
+    private void unshare() {
+        long state = sharing.get();
+        if ((state & READER_MASK) == 0) {
+            return;
+        }
+        int capacity = kind.length;
+        kind = Arrays.copyOf(kind, capacity);
+        health = Arrays.copyOf(health, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        cooldown = Arrays.copyOf(cooldown, capacity);
+        nextGeneration(state);
+    }
+
+    // New arrays with no readers; releases for the old ones no longer match
+    private void nextGeneration(long state) {
+        sharing.set(((state >>> READER_BITS) + 1) << READER_BITS);
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= kind.length) {
+            return;
+        }
+        int capacity = Math.max(needed, kind.length * 2);
+        kind = Arrays.copyOf(kind, capacity);
+        health = Arrays.copyOf(health, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        cooldown = Arrays.copyOf(cooldown, capacity);
+    }
+
+    // Spawn positions depend on this, so a replay must start from the same seed
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    // xorshift: deterministic spawn scatter without allocating a Random
+    private float nextUnit() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        return (seed >>> 40) / (float) (1 << 24);
     }
 }
 
-class Bow implements Weapon {
-    public void use() {
-        System.out.println("Shooting arrow!");
+// Read-only view of an EnemyStore's arrays; only the first count entries are used
+class EnemyColumns {
+    final int count;
+    final byte[] kind;
+    final int[] health;
+    final float[] x;
+    final float[] y;
+    final int[] cooldown;
+    // Which arrays of the store these are, for EnemyStore.release(); -1 if not shared
+    final long generation;
+
+    EnemyColumns(int count, byte[] kind, int[] health, float[] x, float[] y, int[] cooldown) {
+        this(count, kind, health, x, y, cooldown, -1);
+    }
+
+    EnemyColumns(int count, byte[] kind, int[] health, float[] x, float[] y, int[] cooldown, long generation) {
+        this.count = count;
+        this.kind = kind;
+        this.health = health;
+        this.x = x;
+        this.y = y;
+        this.cooldown = cooldown;
+        this.generation = generation;
     }
 }
 
-interface PowerUp {
-    void activate();
+// Entity update benchmark: spawns a horde through the factories and times ticks.
+// Run with: java EnemyUpdateBenchmark [enemies] [ticks]
+class EnemyUpdateBenchmark {
+    public static void main(String[] args) {
+        int enemies = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+
+        EnemyStore store = new EnemyStore(enemies);
+        new GoblinFactory().spawn(store, enemies / 2, 0, 0, 500);
+        new OrcFactory().spawn(store, enemies - enemies / 2, 0, 0, 500);
+
+        long damage = 0;
+        for (int i = 0; i < 200; i++) {
+            damage += store.update(1f / 60, 0, 0);
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < ticks; i++) {
+            damage += store.update(1f / 60, (i % 100) - 50, 0);
+        }
+        long elapsed = System.nanoTime() - begin;
+        System.out.printf("%,d enemies x %,d ticks: %,d entity updates/ms (%.3f ms per tick, %d damage)%n",
+                enemies, ticks, (long) enemies * ticks * 1_000_000L / elapsed,
+                elapsed / 1e6 / ticks, damage);
+    }
 }
 
-class HealthPotion implements PowerUp {
-    public void activate() {
-        System.out.println("Health potion activated!");
+// Versioned Binary Save: a snapshot is a small header followed by the enemy
+// columns back to back, so both saving and loading are bulk copies between
+// the arrays and a memory-mapped file. Saving captures the state on the
+// caller's thread, relying on copy-on-write in EnemyStore instead of copying
+// the arrays up front, and writes a temporary file on a background thread
+// that is then moved over the old save. Opening a save maps the file and
+// reads only the header; the enemy columns are copied and checked on restore.
+//
+// Layout, little-endian: magic, version, level, difficulty (length-prefixed
+// UTF-8), player x, y, health, power-up count and timers, enemy count, then
+// the kind, health, x, y and cooldown columns, then a CRC32 of everything before it.
+class GameSave {
+    private static final int MAGIC = 0x47534156; // "GSAV"
+    private static final int VERSION = 1;
+    // kind, health, x, y, cooldown
+    private static final int ENEMY_BYTES = 1 + 4 + 4 + 4 + 4;
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "game-save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path file;
+    private final ByteBuffer data;
+    private final String level;
+    private final String difficulty;
+    private final float playerX;
+    private final float playerY;
+    private final int playerHealth;
+    private final float[] powerUps;
+    private final int enemyCount;
+    private final int columnsOffset;
+
+    private GameSave(Path file, ByteBuffer data) throws IOException {
+        this.file = file;
+        this.data = data;
+        if (data.remaining() < 8 || data.getInt() != MAGIC) {
+            throw new IOException("Not a save file: " + file);
+        }
+        int version = data.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported save version " + version + ": " + file);
+        }
+        level = readString(data);
+        difficulty = readString(data);
+        playerX = data.getFloat();
+        playerY = data.getFloat();
+        playerHealth = data.getInt();
+        powerUps = new float[data.getInt()];
+        data.asFloatBuffer().get(powerUps);
+        data.position(data.position() + powerUps.length * Float.BYTES);
+        enemyCount = data.getInt();
+        columnsOffset = data.position();
+        if (data.limit() != columnsOffset + (long) enemyCount * ENEMY_BYTES + Integer.BYTES) {
+            throw new IOException("Truncated save file: " + file);
+        }
+    }
+
+    public static GameSave open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new GameSave(file, data.order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    static CompletableFuture<Path> saveAsync(Game game, Path file) {
+        GameWorld world = game.getWorld();
+        String level = game.getCurrentLevel();
+        String difficulty = game.getDifficulty();
+        float playerX = world.playerX;
+        float playerY = world.playerY;
+        int playerHealth = world.playerHealth;
+        float[] powerUps = Arrays.copyOf(world.powerUpRemaining, world.activePowerUps);
+        EnemyColumns enemies = world.enemies.share();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                write(file, level, difficulty, playerX, playerY, playerHealth, powerUps, enemies);
+                return file;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                // Once written, the game may update these arrays in place again
+                world.enemies.release(enemies);
+            }
+        }, WRITER);
+    }
+
+    private static void write(Path file, String level, String difficulty, float playerX, float playerY,
+            int playerHealth, float[] powerUps, EnemyColumns enemies) throws IOException {
+        byte[] levelBytes = level.getBytes(StandardCharsets.UTF_8);
+        byte[] difficultyBytes = difficulty.getBytes(StandardCharsets.UTF_8);
+        int n = enemies.count;
+        long size = 8 + 2 + levelBytes.length + 2 + difficultyBytes.length + 12
+                + 4 + (long) powerUps.length * Float.BYTES
+                + 4 + (long) n * ENEMY_BYTES + 4;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("World too large to save");
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            ByteBuffer out = mapped.order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(MAGIC).putInt(VERSION);
+            out.putShort((short) levelBytes.length).put(levelBytes);
+            out.putShort((short) difficultyBytes.length).put(difficultyBytes);
+            out.putFloat(playerX).putFloat(playerY).putInt(playerHealth);
+            out.putInt(powerUps.length);
+            out.asFloatBuffer().put(powerUps);
+            out.position(out.position() + powerUps.length * Float.BYTES);
+            out.putInt(n);
+            out.put(enemies.kind, 0, n);
+            out.asIntBuffer().put(enemies.health, 0, n);
+            out.position(out.position() + n * Integer.BYTES);
+            out.asFloatBuffer().put(enemies.x, 0, n);
+            out.position(out.position() + n * Float.BYTES);
+            out.asFloatBuffer().put(enemies.y, 0, n);
+            out.position(out.position() + n * Float.BYTES);
+            out.asIntBuffer().put(enemies.cooldown, 0, n);
+            out.position(out.position() + n * Integer.BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(out.duplicate().flip());
+            out.putInt((int) crc.getValue());
+            mapped.force();
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public String getLevel() {
+        return level;
+    }
+
+    public String getDifficulty() {
+        return difficulty;
+    }
+
+    public int getEnemyCount() {
+        return enemyCount;
+    }
+
+    // Copies the snapshot into the game, checking the CRC as the columns are read
+    public void restore(Game game) throws IOException {
+        int crcOffset = data.limit() - Integer.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate().position(0).limit(crcOffset));
+        if ((int) crc.getValue() != data.getInt(crcOffset)) {
+            throw new IOException("Corrupt save file: " + file);
+        }
+
+        int n = enemyCount;
+        byte[] kind = new byte[n];
+        int[] health = new int[n];
+        float[] x = new float[n];
+        float[] y = new float[n];
+        int[] cooldown = new int[n];
+        ByteBuffer in = data.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(columnsOffset);
+        in.get(kind);
+        in.asIntBuffer().get(health);
+        in.position(in.position() + n * Integer.BYTES);
+        in.asFloatBuffer().get(x);
+        in.position(in.position() + n * Float.BYTES);
+        in.asFloatBuffer().get(y);
+        in.position(in.position() + n * Float.BYTES);
+        in.asIntBuffer().get(cooldown);
+
+        game.setCurrentLevel(level);
+        game.setDifficulty(difficulty);
+        GameWorld world = game.getWorld();
+        world.playerX = playerX;
+        world.playerY = playerY;
+        world.playerHealth = playerHealth;
+        world.powerUpRemaining = Arrays.copyOf(powerUps, Math.max(8, powerUps.length));
+        world.activePowerUps = powerUps.length;
+        world.enemies.restore(new EnemyColumns(n, kind, health, x, y, cooldown));
+    }
+
+    private static String readString(ByteBuffer data) {
+        byte[] bytes = new byte[data.getShort() & 0xFFFF];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 }
 
-class SpeedBoost implements PowerUp {
-    public void activate() {
-        System.out.println("Speed boost activated!");
+// Simulation state shared by the game systems
+class GameWorld {
+    final EnemyStore enemies = new EnemyStore(1_024);
+    // Enemy positions bucketed by cell, rebuilt once per tick
+    final CollisionGrid grid = new CollisionGrid(2f);
+    float playerX;
+    float playerY;
+    int playerHealth = 100;
+    // Damage dealt by enemies this tick, applied to the player by combat
+    int pendingDamage;
+    // Seconds left on each active power-up
+    float[] powerUpRemaining = new float[8];
+    int activePowerUps;
+
+    public void activatePowerUp(float seconds) {
+        if (activePowerUps == powerUpRemaining.length) {
+            powerUpRemaining = Arrays.copyOf(powerUpRemaining, activePowerUps * 2);
+        }
+        powerUpRemaining[activePowerUps++] = seconds;
+    }
+
+    // Hash of the whole simulation state, for comparing a replay with the original run
+    public long checksum() {
+        long hash = Float.floatToIntBits(playerX);
+        hash = hash * 31 + Float.floatToIntBits(playerY);
+        hash = hash * 31 + playerHealth;
+        for (int i = 0; i < activePowerUps; i++) {
+            hash = hash * 31 + Float.floatToIntBits(powerUpRemaining[i]);
+        }
+        for (int i = 0; i < enemies.size(); i++) {
+            hash = hash * 31 + enemies.kind[i];
+            hash = hash * 31 + enemies.health[i];
+            hash = hash * 31 + Float.floatToIntBits(enemies.x[i]);
+            hash = hash * 31 + Float.floatToIntBits(enemies.y[i]);
+            hash = hash * 31 + enemies.cooldown[i];
+        }
+        return hash;
     }
 }
 
-interface GameFactory {
-    Weapon createWeapon();
-    PowerUp createPowerUp();
+// Parts of the world a system may read or write; used to schedule systems
+enum WorldData {
+    ENEMIES, PLAYER, POWER_UPS, BROAD_PHASE, PENDING_DAMAGE
 }
 
-class EasyGameFactory implements GameFactory {
-    public Weapon createWeapon() {
-        return new Sword();
+// A unit of per-tick work with declared data access
+interface GameSystem {
+    EnumSet<WorldData> reads();
+    EnumSet<WorldData> writes();
+    void update(GameWorld world, float dt);
+}
+
+class MovementSystem implements GameSystem {
+    public EnumSet<WorldData> reads() {
+        return EnumSet.of(WorldData.PLAYER);
     }
 
-    public PowerUp createPowerUp() {
-        return new HealthPotion();
+    public EnumSet<WorldData> writes() {
+        return EnumSet.of(WorldData.ENEMIES, WorldData.PENDING_DAMAGE);
+    }
+
+    public void update(GameWorld world, float dt) {
+        world.pendingDamage = world.enemies.update(dt, world.playerX, world.playerY);
     }
 }
 
-class HardGameFactory implements GameFactory {
-    public Weapon createWeapon() {
-        return new Bow();
+class CombatSystem implements GameSystem {
+    public EnumSet<WorldData> reads() {
+        return EnumSet.of(WorldData.ENEMIES, WorldData.PENDING_DAMAGE);
     }
 
-    public PowerUp createPowerUp() {
-        return new SpeedBoost();
+    public EnumSet<WorldData> writes() {
+        return EnumSet.of(WorldData.PLAYER);
+    }
+
+    public void update(GameWorld world, float dt) {
+        world.playerHealth = Math.max(0, world.playerHealth - world.pendingDamage);
+    }
+}
+
+class CollisionSystem implements GameSystem {
+    public EnumSet<WorldData> reads() {
+        return EnumSet.of(WorldData.ENEMIES);
+    }
+
+    public EnumSet<WorldData> writes() {
+        return EnumSet.of(WorldData.BROAD_PHASE);
+    }
+
+    public void update(GameWorld world, float dt) {
+        world.grid.rebuild(world.enemies);
+    }
+}
+
+class PowerUpTimerSystem implements GameSystem {
+    public EnumSet<WorldData> reads() {
+        return EnumSet.noneOf(WorldData.class);
+    }
+
+    public EnumSet<WorldData> writes() {
+        return EnumSet.of(WorldData.POWER_UPS);
+    }
+
+    public void update(GameWorld world, float dt) {
+        float[] remaining = world.powerUpRemaining;
+        int active = world.activePowerUps;
+        for (int i = 0; i < active; ) {
+            remaining[i] -= dt;
+            if (remaining[i] <= 0) {
+                remaining[i] = remaining[--active];
+            } else {
+                i++;
+            }
+        }
+        world.activePowerUps = active;
+    }
+}
+
+// Fixed-Timestep Game Loop: the simulation always advances in steps of
+// exactly 1/ticksPerSecond. Systems are grouped into stages from their
+// declared reads and writes: a system goes in the first stage after every
+// earlier system it conflicts with, so systems sharing a stage touch
+// disjoint data and run in parallel on a fork/join pool. Tick durations go
+// into a histogram; a tick longer than its time step counts as an overrun.
+class GameLoop {
+    private static final int MAX_CATCH_UP_TICKS = 5;
+
+    private final GameWorld world;
+    private final float dt;
+    private final long tickNanos;
+    private final GameSystem[][] stages;
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+    private final FrameTimeHistogram histogram = new FrameTimeHistogram();
+    private long ticks;
+    private long overruns;
+    private long droppedTicks;
+    private volatile boolean running;
+
+    public GameLoop(GameWorld world, int ticksPerSecond, GameSystem... systems) {
+        this.world = world;
+        this.dt = 1f / ticksPerSecond;
+        this.tickNanos = 1_000_000_000L / ticksPerSecond;
+        this.stages = schedule(systems);
+    }
+
+    public static GameLoop withDefaultSystems(GameWorld world, int ticksPerSecond) {
+        return new GameLoop(world, ticksPerSecond,
+                new MovementSystem(), new CombatSystem(), new CollisionSystem(), new PowerUpTimerSystem());
+    }
+
+    static GameSystem[][] schedule(GameSystem[] systems) {
+        int[] stageOf = new int[systems.length];
+        int stageCount = 0;
+        for (int i = 0; i < systems.length; i++) {
+            int stage = 0;
+            for (int j = 0; j < i; j++) {
+                if (conflicts(systems[i], systems[j])) {
+                    stage = Math.max(stage, stageOf[j] + 1);
+                }
+            }
+            stageOf[i] = stage;
+            stageCount = Math.max(stageCount, stage + 1);
+        }
+        List<List<GameSystem>> grouped = new ArrayList<>();
+        for (int stage = 0; stage < stageCount; stage++) {
+            grouped.add(new ArrayList<>());
+        }
+        for (int i = 0; i < systems.length; i++) {
+            grouped.get(stageOf[i]).add(systems[i]);
+        }
+        GameSystem[][] result = new GameSystem[stageCount][];
+        for (int stage = 0; stage < stageCount; stage++) {
+            result[stage] = grouped.get(stage).toArray(new GameSystem[0]);
+        }
+        return result;
+    }
+
+    private static boolean conflicts(GameSystem a, GameSystem b) {
+        for (WorldData data : a.writes()) {
+            if (b.reads().contains(data) || b.writes().contains(data)) {
+                return true;
+            }
+        }
+        for (WorldData data : b.writes()) {
+            if (a.reads().contains(data)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int stageCount() {
+        return stages.length;
+    }
+
+    // Runs one simulation step and records how long it took
+    public void tick() {
+        long begin = System.nanoTime();
+        for (GameSystem[] stage : stages) {
+            if (stage.length == 1) {
+                stage[0].update(world, dt);
+            } else {
+                ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[stage.length];
+                for (int i = 1; i < stage.length; i++) {
+                    GameSystem system = stage[i];
+                    tasks[i] = pool.submit(() -> system.update(world, dt));
+                }
+                stage[0].update(world, dt);
+                for (int i = 1; i < stage.length; i++) {
+                    tasks[i].join();
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        histogram.record(elapsed);
+        ticks++;
+        if (elapsed > tickNanos) {
+            overruns++;
+        }
+    }
+
+    // Runs in real time until stop() or maxTicks. When the loop falls behind
+    // it catches up with extra ticks, at most MAX_CATCH_UP_TICKS per frame,
+    // and drops the rest rather than spiralling.
+    public void run(long maxTicks) {
+        running = true;
+        long next = System.nanoTime();
+        long target = ticks + maxTicks;
+        while (running && ticks < target) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            int caughtUp = 0;
+            while (next <= now && caughtUp < MAX_CATCH_UP_TICKS && ticks < target) {
+                tick();
+                next += tickNanos;
+                caughtUp++;
+            }
+            if (next <= now) {
+                long behind = (now - next) / tickNanos + 1;
+                droppedTicks += behind;
+                next += behind * tickNanos;
+            }
+        }
+        running = false;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    public long getOverruns() {
+        return overruns;
+    }
+
+    public String report() {
+        return String.format("%,d ticks in %d stages, %,d overruns, %,d dropped; tick time %s",
+                ticks, stages.length, overruns, droppedTicks, histogram.summary());
+    }
+}
+
+// Tick-time histogram with 10 microsecond buckets up to 100 ms, plus an overflow bucket
+class FrameTimeHistogram {
+    private static final long BUCKET_NANOS = 10_000;
+    private static final int BUCKETS = 10_000;
+
+    private final long[] counts = new long[BUCKETS + 1];
+    private long total;
+    private long max;
+
+    void record(long nanos) {
+        counts[(int) Math.min(BUCKETS, nanos / BUCKET_NANOS)]++;
+        total++;
+        max = Math.max(max, nanos);
+    }
+
+    // Upper bound of the bucket holding the given quantile, in milliseconds
+    double percentile(double quantile) {
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i <= BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return i == BUCKETS ? max / 1e6 : (i + 1) * BUCKET_NANOS / 1e6;
+            }
+        }
+        return 0;
+    }
+
+    String summary() {
+        return String.format("p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+                percentile(0.5), percentile(0.99), percentile(0.999), max / 1e6);
+    }
+}
+
+// Game loop benchmark: a large horde at 60 ticks per second in real time.
+// Run with: java GameLoopBenchmark [enemies] [seconds]
+class GameLoopBenchmark {
+    public static void main(String[] args) {
+        int enemies = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Game game = Game.getInstance();
+        GameWorld world = game.getWorld();
+        new GoblinFactory().spawn(world.enemies, enemies / 2, 0, 0, 1_000);
+        new OrcFactory().spawn(world.enemies, enemies - enemies / 2, 0, 0, 1_000);
+        for (int i = 0; i < 100; i++) {
+            world.activatePowerUp(1 + i % 10);
+        }
+
+        GameLoop loop = game.createLoop(60);
+        loop.run(60L * seconds);
+        System.out.println(loop.report());
+    }
+}
+
+// Save/load benchmark: how long the game thread is held up by a save, how
+// long the background write takes, and how long opening and restoring take.
+// Run with: java GameSaveBenchmark [enemies] [file]
+class GameSaveBenchmark {
+    public static void main(String[] args) throws Exception {
+        int enemies = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path file = Path.of(args.length > 1 ? args[1] : "game.sav");
+
+        Game game = Game.getInstance();
+        game.setCurrentLevel("Level 7");
+        game.setDifficulty("Hard");
+        GameWorld world = game.getWorld();
+        new GoblinFactory().spawn(world.enemies, enemies / 2, 0, 0, 1_000);
+        new OrcFactory().spawn(world.enemies, enemies - enemies / 2, 0, 0, 1_000);
+        world.activatePowerUp(12);
+
+        for (int round = 0; round < 5; round++) {
+            long begin = System.nanoTime();
+            CompletableFuture<Path> pending = game.save(file);
+            long captured = System.nanoTime();
+            // A tick while the save is still being written pays for copying the shared arrays
+            world.enemies.update(1 / 60f, world.playerX, world.playerY);
+            long ticked = System.nanoTime();
+            pending.join();
+            long written = System.nanoTime();
+            // Once the writer has released them, the arrays are updated in place again
+            game.save(file).join();
+            long tickBegin = System.nanoTime();
+            world.enemies.update(1 / 60f, world.playerX, world.playerY);
+            long tickAfterWrite = System.nanoTime() - tickBegin;
+
+            int expected = world.enemies.healthAt(enemies - 1);
+            long opening = System.nanoTime();
+            GameSave save = GameSave.open(file);
+            long opened = System.nanoTime();
+            save.restore(game);
+            long restored = System.nanoTime();
+            if (world.enemies.size() != enemies || world.enemies.healthAt(enemies - 1) != expected) {
+                throw new IllegalStateException("Restored world does not match the save");
+            }
+
+            System.out.printf("%,d enemies, %,d bytes: capture %.3f ms, tick during write %.2f ms,"
+                    + " write %.2f ms, tick after write %.2f ms, open %.3f ms, restore %.2f ms%n",
+                    enemies, Files.size(file), (captured - begin) / 1e6, (ticked - captured) / 1e6,
+                    (written - ticked) / 1e6, tickAfterWrite / 1e6, (opened - opening) / 1e6,
+                    (restored - opened) / 1e6);
+        }
+        Files.deleteIfExists(file);
+    }
+}
+
+// Broad-Phase Collision: a spatial hash of square cells over the enemy
+// store. Each rebuild is a counting sort of enemy indices by cell into
+// arrays that are reused between ticks, so it is O(n) with no allocation.
+// Queries only look at the cells a shape overlaps; cells that collide in
+// the hash table are told apart by recomputing each enemy's cell.
+// Indices are those of the store at the last rebuild, so any change to the
+// store leaves the grid stale until it is rebuilt; isCurrent() tells.
+class CollisionGrid {
+    // Enemies are circles of this radius for weapon hits; must not exceed the cell size
+    static final float ENEMY_RADIUS = 0.5f;
+
+    private final float cellSize;
+    private final float inverseCell;
+    private int mask = 15;
+    private int[] cellStart = new int[17];
+    private int[] cellOf = new int[16];
+    private int[] sorted = new int[16];
+    private int size;
+    private int[] hits = new int[64];
+    private EnemyStore builtFrom;
+    private long builtAt;
+
+    public CollisionGrid(float cellSize) {
+        this.cellSize = cellSize;
+        this.inverseCell = 1f / cellSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // True if the grid was last built from this store and it has not changed since
+    public boolean isCurrent(EnemyStore store) {
+        return builtFrom == store && builtAt == store.getModifications();
+    }
+
+    public void rebuild(EnemyStore store) {
+        builtFrom = store;
+        builtAt = store.getModifications();
+        int n = store.size();
+        if (n > cellOf.length) {
+            cellOf = new int[Math.max(n, cellOf.length * 2)];
+            sorted = new int[cellOf.length];
+        }
+        // About two table buckets per enemy keeps hash collisions rare
+        int buckets = Integer.highestOneBit(Math.max(16, n) * 2 - 1) << 1;
+        if (buckets > mask + 1) {
+            mask = buckets - 1;
+            cellStart = new int[buckets + 1];
+        } else {
+            Arrays.fill(cellStart, 0);
+        }
+        float[] xs = store.x;
+        float[] ys = store.y;
+        for (int i = 0; i < n; i++) {
+            int bucket = bucket(cell(xs[i]), cell(ys[i]));
+            cellOf[i] = bucket;
+            cellStart[bucket]++;
+        }
+        // Running totals give each bucket's end; filling backwards leaves its start
+        int total = 0;
+        for (int b = 0; b <= mask; b++) {
+            total += cellStart[b];
+            cellStart[b] = total;
+        }
+        cellStart[mask + 1] = n;
+        for (int i = n - 1; i >= 0; i--) {
+            sorted[--cellStart[cellOf[i]]] = i;
+        }
+        size = n;
+    }
+
+    // Enemies whose centre is within radius of (cx, cy); read them with hitAt
+    public int queryCircle(EnemyStore store, float cx, float cy, float radius) {
+        float[] xs = store.x;
+        float[] ys = store.y;
+        float radiusSquared = radius * radius;
+        int minX = cell(cx - radius);
+        int maxX = cell(cx + radius);
+        int minY = cell(cy - radius);
+        int maxY = cell(cy + radius);
+        int found = 0;
+        for (int gx = minX; gx <= maxX; gx++) {
+            for (int gy = minY; gy <= maxY; gy++) {
+                int bucket = bucket(gx, gy);
+                for (int k = cellStart[bucket], end = cellStart[bucket + 1]; k < end; k++) {
+                    int i = sorted[k];
+                    float dx = xs[i] - cx;
+                    float dy = ys[i] - cy;
+                    if (dx * dx + dy * dy <= radiusSquared && cell(xs[i]) == gx && cell(ys[i]) == gy) {
+                        if (found == hits.length) {
+                            hits = Arrays.copyOf(hits, found * 2);
+                        }
+                        hits[found++] = i;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // Enemies close enough to (px, py) to attack it, each by its own kind's range
+    public int queryAttackers(EnemyStore store, float px, float py) {
+        int candidates = queryCircle(store, px, py, EnemyKind.maxAttackRange());
+        int found = 0;
+        for (int k = 0; k < candidates; k++) {
+            int i = hits[k];
+            float range = store.kindAt(i).attackRange;
+            float dx = store.x[i] - px;
+            float dy = store.y[i] - py;
+            if (dx * dx + dy * dy <= range * range) {
+                hits[found++] = i;
+            }
+        }
+        return found;
+    }
+
+    public int hitAt(int k) {
+        return hits[k];
+    }
+
+    // Nearest enemy hit by a ray from (ox, oy) along the unit vector (dirX,
+    // dirY) within maxDistance, or -1. Walks the cells the ray crosses in
+    // order (Amanatides-Woo) and tests each one's neighbours too, since an
+    // enemy circle can reach over a cell edge. Every hit point lies in a
+    // cell the ray has entered, so the walk stops at the first cell entered
+    // beyond the nearest hit so far.
+    public int raycast(EnemyStore store, float ox, float oy, float dirX, float dirY, float maxDistance) {
+        float[] xs = store.x;
+        float[] ys = store.y;
+        int gx = cell(ox);
+        int gy = cell(oy);
+        int stepX = dirX >= 0 ? 1 : -1;
+        int stepY = dirY >= 0 ? 1 : -1;
+        float deltaX = dirX == 0 ? Float.POSITIVE_INFINITY : Math.abs(cellSize / dirX);
+        float deltaY = dirY == 0 ? Float.POSITIVE_INFINITY : Math.abs(cellSize / dirY);
+        float nextX = dirX == 0 ? Float.POSITIVE_INFINITY : ((stepX > 0 ? gx + 1 : gx) * cellSize - ox) / dirX;
+        float nextY = dirY == 0 ? Float.POSITIVE_INFINITY : ((stepY > 0 ? gy + 1 : gy) * cellSize - oy) / dirY;
+        float radiusSquared = ENEMY_RADIUS * ENEMY_RADIUS;
+        int nearest = -1;
+        float nearestT = maxDistance;
+        float t = 0;
+        while (t <= nearestT) {
+            for (int ax = gx - 1; ax <= gx + 1; ax++) {
+                for (int ay = gy - 1; ay <= gy + 1; ay++) {
+                    int bucket = bucket(ax, ay);
+                    for (int k = cellStart[bucket], end = cellStart[bucket + 1]; k < end; k++) {
+                        int i = sorted[k];
+                        // Closest approach of the ray to the enemy centre
+                        float ex = xs[i] - ox;
+                        float ey = ys[i] - oy;
+                        float along = ex * dirX + ey * dirY;
+                        float across = ex * dirY - ey * dirX;
+                        if (along < 0 || across * across > radiusSquared) {
+                            continue;
+                        }
+                        float entry = Math.max(0, along - (float) Math.sqrt(radiusSquared - across * across));
+                        if (entry < nearestT && cell(xs[i]) == ax && cell(ys[i]) == ay) {
+                            nearestT = entry;
+                            nearest = i;
+                        }
+                    }
+                }
+            }
+            if (nextX < nextY) {
+                t = nextX;
+                nextX += deltaX;
+                gx += stepX;
+            } else {
+                t = nextY;
+                nextY += deltaY;
+                gy += stepY;
+            }
+        }
+        return nearest;
+    }
+
+    private int cell(float coordinate) {
+        return (int) Math.floor(coordinate * inverseCell);
+    }
+
+    private int bucket(int gx, int gy) {
+        return ((gx * 0x8DA6B343) ^ (gy * 0xD8163841)) & mask;
+    }
+}
+
+// Broad-phase benchmark: grid rebuild and query costs from thousands to
+// hundreds of thousands of enemies at constant density, with every query
+// checked against a brute-force scan of the whole store.
+// Run with: java CollisionBenchmark [maxEnemies]
+class CollisionBenchmark {
+    private static final int QUERIES = 2_000;
+
+    public static void main(String[] args) {
+        int maxEnemies = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        for (int n = 1_000; n <= maxEnemies; n *= 10) {
+            run(n);
+            if (n * 5 <= maxEnemies && n * 10 > maxEnemies) {
+                run(n * 5);
+            }
+        }
+    }
+
+    private static void run(int n) {
+        float radius = (float) Math.sqrt(n) * 2;
+        EnemyStore store = new EnemyStore(n);
+        new GoblinFactory().spawn(store, n / 2, 0, 0, radius);
+        new OrcFactory().spawn(store, n - n / 2, 0, 0, radius);
+        CollisionGrid grid = new CollisionGrid(2f);
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            grid.rebuild(store);
+        }
+        double rebuildMs = (System.nanoTime() - begin) / 20 / 1e6;
+
+        float[] qx = new float[QUERIES];
+        float[] qy = new float[QUERIES];
+        float[] angle = new float[QUERIES];
+        long seed = n;
+        for (int q = 0; q < QUERIES; q++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            qx[q] = ((seed >>> 40) / (float) (1 << 24) * 2 - 1) * radius;
+            qy[q] = ((seed >>> 16 & 0xFFFFFF) / (float) (1 << 24) * 2 - 1) * radius;
+            angle[q] = (seed & 0xFFFF) / 65536f * 6.2831855f;
+        }
+
+        long hits = 0;
+        begin = System.nanoTime();
+        for (int q = 0; q < QUERIES; q++) {
+            hits += grid.queryCircle(store, qx[q], qy[q], Sword.REACH);
+            hits += grid.queryAttackers(store, qx[q], qy[q]);
+            hits += grid.raycast(store, qx[q], qy[q], (float) Math.cos(angle[q]), (float) Math.sin(angle[q]),
+                    Bow.RANGE) >= 0 ? 1 : 0;
+        }
+        double gridUs = (System.nanoTime() - begin) / 1e3 / QUERIES;
+
+        long bruteHits = 0;
+        begin = System.nanoTime();
+        for (int q = 0; q < QUERIES; q++) {
+            bruteHits += bruteCircle(store, qx[q], qy[q], Sword.REACH);
+            bruteHits += bruteAttackers(store, qx[q], qy[q]);
+            bruteHits += bruteRaycast(store, qx[q], qy[q], (float) Math.cos(angle[q]), (float) Math.sin(angle[q]),
+                    Bow.RANGE) >= 0 ? 1 : 0;
+        }
+        double bruteUs = (System.nanoTime() - begin) / 1e3 / QUERIES;
+        if (hits != bruteHits) {
+            throw new IllegalStateException("Grid found " + hits + " hits, brute force " + bruteHits);
+        }
+
+        System.out.printf("%,9d enemies: rebuild %.2f ms, sword+attack+bow %.2f us/query"
+                + " (brute force %.1f us), %,d hits%n", n, rebuildMs, gridUs, bruteUs, hits);
+    }
+
+    private static int bruteCircle(EnemyStore store, float cx, float cy, float radius) {
+        int found = 0;
+        for (int i = 0; i < store.size(); i++) {
+            float dx = store.xAt(i) - cx;
+            float dy = store.yAt(i) - cy;
+            if (dx * dx + dy * dy <= radius * radius) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static int bruteAttackers(EnemyStore store, float px, float py) {
+        int found = 0;
+        for (int i = 0; i < store.size(); i++) {
+            float range = store.kindAt(i).attackRange;
+            float dx = store.xAt(i) - px;
+            float dy = store.yAt(i) - py;
+            if (dx * dx + dy * dy <= range * range) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static int bruteRaycast(EnemyStore store, float ox, float oy, float dirX, float dirY, float maxDistance) {
+        float radiusSquared = CollisionGrid.ENEMY_RADIUS * CollisionGrid.ENEMY_RADIUS;
+        int nearest = -1;
+        float nearestT = maxDistance;
+        for (int i = 0; i < store.size(); i++) {
+            float ex = store.xAt(i) - ox;
+            float ey = store.yAt(i) - oy;
+            float along = ex * dirX + ey * dirY;
+            float across = ex * dirY - ey * dirX;
+            if (along < 0 || across * across > radiusSquared) {
+                continue;
+            }
+            float entry = Math.max(0, along - (float) Math.sqrt(radiusSquared - across * across));
+            if (entry < nearestT) {
+                nearestT = entry;
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+}
+
+// Player-facing entry point to the simulation. Every input and factory call
+// goes through here so that it can be recorded, and a replay drives the
+// same methods. Coordinates are rounded to 1/256 of a unit before use, so
+// the recorded values are exactly the ones the live game applied.
+class GameSession {
+    static final float QUANTUM = 256f;
+
+    private final GameWorld world;
+    private final GameLoop loop;
+    private InputRecorder recorder;
+    private Weapon weapon;
+    private PowerUp powerUp;
+
+    public GameSession(GameWorld world, int ticksPerSecond) {
+        this.world = world;
+        this.loop = GameLoop.withDefaultSystems(world, ticksPerSecond);
+    }
+
+    public void setRecorder(InputRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public GameWorld getWorld() {
+        return world;
+    }
+
+    // Equips copies of the difficulty's cached prototypes, so only the
+    // first equip of a difficulty that was never warmed waits for loading
+    public void equip(GameFactory factory) {
+        if (recorder != null) {
+            recorder.equip(factory);
+        }
+        if (!(factory instanceof CachingGameFactory)) {
+            factory = GameAssets.getInstance().factoryFor(factory.getDifficulty());
+        }
+        weapon = factory.createWeapon();
+        powerUp = factory.createPowerUp();
+    }
+
+    public void spawn(EnemyFactory factory, int count, float x, float y, float radius) {
+        x = quantize(x);
+        y = quantize(y);
+        radius = quantize(radius);
+        if (recorder != null) {
+            recorder.spawn(factory.getKind(), count, x, y, radius);
+        }
+        factory.spawn(world.enemies, count, x, y, radius);
+    }
+
+    public void movePlayer(float x, float y) {
+        x = quantize(x);
+        y = quantize(y);
+        if (recorder != null) {
+            recorder.movePlayer(x, y);
+        }
+        world.playerX = x;
+        world.playerY = y;
+    }
+
+    // Returns the kills, or 0 with nothing equipped
+    public int strike(float aimX, float aimY) {
+        aimX = quantize(aimX);
+        aimY = quantize(aimY);
+        if (recorder != null) {
+            recorder.strike(aimX, aimY);
+        }
+        return weapon == null ? 0 : weapon.strike(world, aimX, aimY);
+    }
+
+    public void usePowerUp() {
+        if (recorder != null) {
+            recorder.usePowerUp();
+        }
+        if (powerUp != null) {
+            powerUp.apply(world);
+        }
+    }
+
+    public void tick() {
+        if (recorder != null) {
+            recorder.tick();
+        }
+        loop.tick();
+    }
+
+    public GameLoop getLoop() {
+        return loop;
+    }
+
+    static float quantize(float value) {
+        return Math.round(value * QUANTUM) / QUANTUM;
+    }
+}
+
+// Input Recorder: writes a session as a compact binary stream. Runs of ticks
+// collapse into one count, and positions are stored as zig-zag varints of
+// the change in fixed-point units from the previous player position, so a
+// typical tick with a small move takes a few bytes.
+//
+// Stream: magic, version, ticks per second, level, difficulty, spawn seed,
+// player x, y and health, then opcodes with their operands, then END.
+class InputRecorder implements Closeable {
+    static final int MAGIC = 0x47524543; // "GREC"
+    static final int VERSION = 1;
+
+    static final int END = 0;
+    static final int TICKS = 1;
+    static final int EQUIP = 2;
+    static final int SPAWN = 3;
+    static final int MOVE = 4;
+    static final int STRIKE = 5;
+    static final int POWER_UP = 6;
+
+    private final DataOutputStream out;
+    private int pendingTicks;
+    private int lastX;
+    private int lastY;
+    private long bytesBefore;
+
+    // Must be called before anything is spawned, so the replay starts from the same world
+    public InputRecorder(OutputStream stream, Game game, int ticksPerSecond) throws IOException {
+        GameWorld world = game.getWorld();
+        if (world.enemies.size() != 0) {
+            throw new IllegalStateException("Recording must start from an empty world");
+        }
+        out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeVarint(ticksPerSecond);
+        out.writeUTF(game.getCurrentLevel());
+        out.writeUTF(game.getDifficulty());
+        out.writeLong(world.enemies.getSeed());
+        lastX = fixed(world.playerX);
+        lastY = fixed(world.playerY);
+        out.writeInt(lastX);
+        out.writeInt(lastY);
+        out.writeInt(world.playerHealth);
+        bytesBefore = out.size();
+    }
+
+    void tick() {
+        pendingTicks++;
+    }
+
+    void equip(GameFactory factory) {
+        op(EQUIP);
+        write(gameFactoryId(factory));
+    }
+
+    void spawn(EnemyKind kind, int count, float x, float y, float radius) {
+        op(SPAWN);
+        write(kind.ordinal());
+        writeVarint(count);
+        writeVarint(zigZag(fixed(x)));
+        writeVarint(zigZag(fixed(y)));
+        writeVarint(fixed(radius));
+    }
+
+    void movePlayer(float x, float y) {
+        op(MOVE);
+        int fx = fixed(x);
+        int fy = fixed(y);
+        writeVarint(zigZag(fx - lastX));
+        writeVarint(zigZag(fy - lastY));
+        lastX = fx;
+        lastY = fy;
+    }
+
+    // Aim is stored relative to the player
+    void strike(float aimX, float aimY) {
+        op(STRIKE);
+        writeVarint(zigZag(fixed(aimX) - lastX));
+        writeVarint(zigZag(fixed(aimY) - lastY));
+    }
+
+    void usePowerUp() {
+        op(POWER_UP);
+    }
+
+    public long bytesWritten() {
+        return out.size() - bytesBefore;
+    }
+
+    public void close() throws IOException {
+        op(END);
+        out.close();
+    }
+
+    // Recorded by difficulty, so a caching factory records as the one it wraps
+    static int gameFactoryId(GameFactory factory) {
+        switch (factory.getDifficulty()) {
+            case "Easy":
+                return 0;
+            case "Hard":
+                return 1;
+            default:
+                throw new IllegalArgumentException("Cannot record " + factory.getClass().getName());
+        }
+    }
+
+    static GameFactory gameFactory(int id) {
+        switch (id) {
+            case 0:
+                return GameAssets.getInstance().factoryFor("Easy");
+            case 1:
+                return GameAssets.getInstance().factoryFor("Hard");
+            default:
+                throw new IllegalArgumentException("Unknown game factory " + id);
+        }
+    }
+
+    static int fixed(float value) {
+        return Math.round(value * GameSession.QUANTUM);
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    // Flushes any pending ticks before the next operation
+    private void op(int code) {
+        if (pendingTicks > 0) {
+            write(TICKS);
+            writeVarint(pendingTicks);
+            pendingTicks = 0;
+        }
+        write(code);
+    }
+
+    private void write(int b) {
+        try {
+            out.write(b);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        write(value);
+    }
+}
+
+// Replay Engine: rebuilds a fresh world from a recording's header and feeds
+// the recorded operations through a GameSession as fast as possible, with
+// no pacing and no output, so a recorded session becomes a repeatable
+// throughput benchmark.
+class GameReplay {
+    private final DataInputStream in;
+    private final String level;
+    private final String difficulty;
+    private final GameSession session;
+    private long ticks;
+
+    public GameReplay(InputStream stream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+        if (in.readInt() != InputRecorder.MAGIC) {
+            throw new IOException("Not a game recording");
+        }
+        int version = in.readInt();
+        if (version != InputRecorder.VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+        }
+        int ticksPerSecond = readVarint();
+        level = in.readUTF();
+        difficulty = in.readUTF();
+        GameWorld world = new GameWorld();
+        world.enemies.setSeed(in.readLong());
+        world.playerX = in.readInt() / GameSession.QUANTUM;
+        world.playerY = in.readInt() / GameSession.QUANTUM;
+        world.playerHealth = in.readInt();
+        session = new GameSession(world, ticksPerSecond);
+    }
+
+    public String getLevel() {
+        return level;
+    }
+
+    public String getDifficulty() {
+        return difficulty;
+    }
+
+    public GameWorld getWorld() {
+        return session.getWorld();
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    // Runs the recording to its end
+    public void run() throws IOException {
+        int lastX = InputRecorder.fixed(session.getWorld().playerX);
+        int lastY = InputRecorder.fixed(session.getWorld().playerY);
+        while (true) {
+            int op = in.read();
+            switch (op) {
+                case InputRecorder.END:
+                    in.close();
+                    return;
+                case InputRecorder.TICKS:
+                    for (int n = readVarint(); n > 0; n--) {
+                        session.tick();
+                        ticks++;
+                    }
+                    break;
+                case InputRecorder.EQUIP:
+                    session.equip(InputRecorder.gameFactory(in.readUnsignedByte()));
+                    break;
+                case InputRecorder.SPAWN: {
+                    EnemyKind kind = EnemyKind.values()[in.readUnsignedByte()];
+                    int count = readVarint();
+                    float x = unZigZag(readVarint()) / GameSession.QUANTUM;
+                    float y = unZigZag(readVarint()) / GameSession.QUANTUM;
+                    float radius = readVarint() / GameSession.QUANTUM;
+                    session.spawn(EnemyFactory.forKind(kind), count, x, y, radius);
+                    break;
+                }
+                case InputRecorder.MOVE:
+                    lastX += unZigZag(readVarint());
+                    lastY += unZigZag(readVarint());
+                    session.movePlayer(lastX / GameSession.QUANTUM, lastY / GameSession.QUANTUM);
+                    break;
+                case InputRecorder.STRIKE: {
+                    int aimX = lastX + unZigZag(readVarint());
+                    int aimY = lastY + unZigZag(readVarint());
+                    session.strike(aimX / GameSession.QUANTUM, aimY / GameSession.QUANTUM);
+                    break;
+                }
+                case InputRecorder.POWER_UP:
+                    session.usePowerUp();
+                    break;
+                default:
+                    throw new IOException("Corrupt recording: opcode " + op);
+            }
+        }
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt recording: varint too long");
+    }
+}
+
+// Record/replay benchmark: plays a scripted session in real time while
+// recording it, replays the recording at full speed and checks that both
+// end in the same state.
+// Run with: java ReplayBenchmark [seconds] [file]
+class ReplayBenchmark {
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        Path file = Path.of(args.length > 1 ? args[1] : "session.rec");
+        int ticksPerSecond = 60;
+
+        Game game = Game.getInstance();
+        GameAssets.getInstance().warmUp();
+        GameSession session = new GameSession(game.getWorld(), ticksPerSecond);
+        InputRecorder recorder = new InputRecorder(Files.newOutputStream(file), game, ticksPerSecond);
+        session.setRecorder(recorder);
+
+        long tickNanos = 1_000_000_000L / ticksPerSecond;
+        long begin = System.nanoTime();
+        session.equip(new EasyGameFactory());
+        int totalTicks = seconds * ticksPerSecond;
+        for (int t = 0; t < totalTicks; t++) {
+            if (t % (5 * ticksPerSecond) == 0) {
+                session.spawn(new GoblinFactory(), 20_000, 0, 0, 300);
+                session.spawn(new OrcFactory(), 10_000, 0, 0, 300);
+                session.equip(t % (10 * ticksPerSecond) == 0 ? new EasyGameFactory() : new HardGameFactory());
+            }
+            double angle = t * 0.01;
+            session.movePlayer((float) (Math.cos(angle) * 50), (float) (Math.sin(angle) * 50));
+            if (t % 6 == 0) {
+                session.strike((float) (Math.cos(angle * 3) * 80), (float) (Math.sin(angle * 3) * 80));
+            }
+            if (t % 300 == 150) {
+                session.usePowerUp();
+            }
+            session.tick();
+            LockSupport.parkNanos(begin + (t + 1) * tickNanos - System.nanoTime());
+        }
+        recorder.close();
+        double liveSeconds = (System.nanoTime() - begin) / 1e9;
+        long liveChecksum = game.getWorld().checksum();
+
+        long replayBegin = System.nanoTime();
+        GameReplay replay = new GameReplay(Files.newInputStream(file));
+        replay.run();
+        double replaySeconds = (System.nanoTime() - replayBegin) / 1e9;
+        long replayChecksum = replay.getWorld().checksum();
+
+        System.out.printf("Recorded %,d ticks (%.1f s live) in %,d bytes, %.1f bytes/tick%n",
+                totalTicks, liveSeconds, recorder.bytesWritten(), recorder.bytesWritten() / (double) totalTicks);
+        System.out.printf("Replayed %,d ticks in %.2f s: %,.0f ticks/s, %.1fx real time, %,d enemies left%n",
+                replay.getTicks(), replaySeconds, replay.getTicks() / replaySeconds,
+                liveSeconds / replaySeconds, replay.getWorld().enemies.size());
+        System.out.println(liveChecksum == replayChecksum
+                ? "Replay matches the live session"
+                : "Replay DIVERGED from the live session");
+        Files.deleteIfExists(file);
+    }
+}
+
+// Loaded asset data: immutable, so every copy of a prototype shares it.
+// Loading stands in for reading and decoding a model from disk: a fixed
+// I/O wait plus generating the vertex data.
+final class Asset {
+    static final long LOAD_IO_MILLIS = 30;
+
+    final String name;
+    final float[] vertices;
+
+    private Asset(String name, float[] vertices) {
+        this.name = name;
+        this.vertices = vertices;
+    }
+
+    static Asset load(String name, int vertexCount) {
+        LockSupport.parkNanos(LOAD_IO_MILLIS * 1_000_000L);
+        float[] vertices = new float[vertexCount * 3];
+        for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = (float) Math.sin(i * 0.001 + name.hashCode());
+        }
+        return new Asset(name, vertices);
+    }
+}
+
+// Prototype Cache: wraps a GameFactory and loads its weapon and power-up
+// once, in the background, then hands out copies that share the loaded
+// assets. Asking before the prototypes are ready waits for them and counts
+// as a stall.
+class CachingGameFactory implements GameFactory {
+    private final String difficulty;
+    private final CompletableFuture<Weapon> weapon;
+    private final CompletableFuture<PowerUp> powerUp;
+    private final LongAdder stalls = new LongAdder();
+
+    public CachingGameFactory(GameFactory delegate, Executor loader) {
+        difficulty = delegate.getDifficulty();
+        weapon = CompletableFuture.supplyAsync(delegate::loadWeapon, loader);
+        powerUp = CompletableFuture.supplyAsync(delegate::loadPowerUp, loader);
+    }
+
+    public Weapon createWeapon() {
+        if (!weapon.isDone()) {
+            stalls.increment();
+        }
+        return weapon.join().copy();
+    }
+
+    public PowerUp createPowerUp() {
+        if (!powerUp.isDone()) {
+            stalls.increment();
+        }
+        return powerUp.join().copy();
+    }
+
+    public Weapon loadWeapon() {
+        return createWeapon();
+    }
+
+    public PowerUp loadPowerUp() {
+        return createPowerUp();
+    }
+
+    public String getDifficulty() {
+        return difficulty;
+    }
+
+    public boolean isReady() {
+        return weapon.isDone() && powerUp.isDone();
+    }
+
+    public CompletableFuture<Void> whenReady() {
+        return CompletableFuture.allOf(weapon, powerUp);
+    }
+
+    public long getStalls() {
+        return stalls.sum();
+    }
+}
+
+// Per-difficulty asset caches. warmUp() starts loading every difficulty's
+// prototypes at once on background threads, so by the time a level starts
+// its factory is usually ready.
+class GameAssets {
+    private static GameAssets instance;
+    private final ExecutorService loader = Executors.newFixedThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "asset-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, CachingGameFactory> factories = new ConcurrentHashMap<>();
+
+    private GameAssets() {
+    }
+
+    public static synchronized GameAssets getInstance() {
+        if (instance == null) {
+            instance = new GameAssets();
+        }
+        return instance;
+    }
+
+    public void warmUp() {
+        factoryFor("Easy");
+        factoryFor("Hard");
+    }
+
+    // Starts warming the difficulty's prototypes if nothing has yet
+    public CachingGameFactory factoryFor(String difficulty) {
+        return factories.computeIfAbsent(difficulty,
+                key -> new CachingGameFactory(baseFactory(key), loader));
+    }
+
+    public boolean isReady(String difficulty) {
+        CachingGameFactory factory = factories.get(difficulty);
+        return factory != null && factory.isReady();
+    }
+
+    private static GameFactory baseFactory(String difficulty) {
+        switch (difficulty) {
+            case "Easy":
+                return new EasyGameFactory();
+            case "Hard":
+                return new HardGameFactory();
+            default:
+                throw new IllegalArgumentException("Unknown difficulty: " + difficulty);
+        }
+    }
+}
+
+// Time to first frame with and without prototype warm-up. Startup spawns
+// the level's horde; a level is ready to draw once the player is equipped
+// and the first tick has run. Warm-up overlaps asset loading with spawning.
+// Run with: java FirstFrameBenchmark [enemies]
+class FirstFrameBenchmark {
+    public static void main(String[] args) {
+        int enemies = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+        // Untimed run so both measurements see compiled code. Loading on the
+        // calling thread stands in for loading on demand, without touching
+        // the shared caches the warm run measures.
+        startLevel(new CachingGameFactory(new EasyGameFactory(), Runnable::run), enemies);
+
+        long begin = System.nanoTime();
+        startLevel(new CachingGameFactory(new HardGameFactory(), Runnable::run), enemies);
+        double coldMs = (System.nanoTime() - begin) / 1e6;
+
+        begin = System.nanoTime();
+        GameAssets assets = GameAssets.getInstance();
+        assets.warmUp();
+        CachingGameFactory factory = assets.factoryFor("Hard");
+        GameSession warm = startLevel(factory, enemies);
+        double warmMs = (System.nanoTime() - begin) / 1e6;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            warm.equip(factory);
+        }
+        double copyUs = (System.nanoTime() - begin) / 1e3 / 10_000;
+
+        System.out.printf("Time to first frame: %.1f ms loading on demand, %.1f ms with warm-up (%d stalls)%n",
+                coldMs, warmMs, factory.getStalls());
+        System.out.printf("Easy ready: %b, Hard ready: %b; cached weapon and power-up %.2f us per equip%n",
+                assets.isReady("Easy"), assets.isReady("Hard"), copyUs);
+    }
+
+    private static GameSession startLevel(GameFactory factory, int enemies) {
+        GameSession session = new GameSession(new GameWorld(), 60);
+        session.spawn(new GoblinFactory(), enemies / 2, 0, 0, 500);
+        session.spawn(new OrcFactory(), enemies - enemies / 2, 0, 0, 500);
+        session.equip(factory);
+        session.tick();
+        return session;
+    }
+}
+
+// Abstract Factory Pattern: Weapon and Power-Up Creation
+interface Weapon {
+    void use();
+
+    // Attacks enemies from the player's position toward (aimX, aimY) and
+    // returns how many were killed. Uses the world's grid, rebuilding it if
+    // enemies have moved, spawned, died or been restored since the last rebuild.
+    int strike(GameWorld world, float aimX, float aimY);
+
+    // Prototype: a fresh weapon sharing this one's asset, if it has one
+    Weapon copy();
+}
+
+class Sword implements Weapon {
+    static final float REACH = 2f;
+    static final int DAMAGE = 25;
+
+    private final Asset asset;
+
+    // Without a model: cheap, for anything that never draws it
+    public Sword() {
+        this(null);
+    }
+
+    static Sword load() {
+        return new Sword(Asset.load("sword", 40_000));
+    }
+
+    private Sword(Asset asset) {
+        this.asset = asset;
+    }
+
+    public Weapon copy() {
+        return new Sword(asset);
+    }
+
+    public void use() {
+        System.out.println("Swinging sword!");
+    }
+
+    // Hits every enemy within reach. Kills swap-remove from the store, so
+    // hits are applied from the highest index down to keep the rest valid.
+    public int strike(GameWorld world, float aimX, float aimY) {
+        EnemyStore enemies = world.enemies;
+        CollisionGrid grid = world.grid;
+        if (!grid.isCurrent(enemies)) {
+            grid.rebuild(enemies);
+        }
+        int found = grid.queryCircle(enemies, world.playerX, world.playerY, REACH);
+        int[] targets = new int[found];
+        for (int k = 0; k < found; k++) {
+            targets[k] = grid.hitAt(k);
+        }
+        Arrays.sort(targets);
+        int kills = 0;
+        for (int k = found - 1; k >= 0; k--) {
+            if (enemies.damage(targets[k], DAMAGE)) {
+                kills++;
+            }
+        }
+        return kills;
+    }
+}
+
+class Bow implements Weapon {
+    static final float RANGE = 30f;
+    static final int DAMAGE = 40;
+
+    private final Asset asset;
+
+    // Without a model: cheap, for anything that never draws it
+    public Bow() {
+        this(null);
+    }
+
+    static Bow load() {
+        return new Bow(Asset.load("bow", 60_000));
+    }
+
+    private Bow(Asset asset) {
+        this.asset = asset;
+    }
+
+    public Weapon copy() {
+        return new Bow(asset);
+    }
+
+    public void use() {
+        System.out.println("Shooting arrow!");
+    }
+
+    // The arrow stops at the first enemy along the line of fire
+    public int strike(GameWorld world, float aimX, float aimY) {
+        EnemyStore enemies = world.enemies;
+        CollisionGrid grid = world.grid;
+        if (!grid.isCurrent(enemies)) {
+            grid.rebuild(enemies);
+        }
+        float dx = aimX - world.playerX;
+        float dy = aimY - world.playerY;
+        float length = (float) Math.sqrt(dx * dx + dy * dy);
+        if (length == 0) {
+            return 0;
+        }
+        int target = grid.raycast(enemies, world.playerX, world.playerY, dx / length, dy / length, RANGE);
+        return target >= 0 && enemies.damage(target, DAMAGE) ? 1 : 0;
+    }
+}
+
+interface PowerUp {
+    void activate();
+
+    // Applies the power-up's effect to the simulation
+    void apply(GameWorld world);
+
+    // Prototype: a fresh power-up sharing this one's asset, if it has one
+    PowerUp copy();
+}
+
+class HealthPotion implements PowerUp {
+    static final int HEALING = 25;
+
+    private final Asset asset;
+
+    // Without a model: cheap, for anything that never draws it
+    public HealthPotion() {
+        this(null);
+    }
+
+    static HealthPotion load() {
+        return new HealthPotion(Asset.load("health-potion", 20_000));
+    }
+
+    private HealthPotion(Asset asset) {
+        this.asset = asset;
+    }
+
+    public PowerUp copy() {
+        return new HealthPotion(asset);
+    }
+
+    public void activate() {
+        System.out.println("Health potion activated!");
+    }
+
+    public void apply(GameWorld world) {
+        world.playerHealth = Math.min(100, world.playerHealth + HEALING);
+    }
+}
+
+class SpeedBoost implements PowerUp {
+    static final float SECONDS = 10f;
+
+    private final Asset asset;
+
+    // Without a model: cheap, for anything that never draws it
+    public SpeedBoost() {
+        this(null);
+    }
+
+    static SpeedBoost load() {
+        return new SpeedBoost(Asset.load("speed-boost", 20_000));
+    }
+
+    private SpeedBoost(Asset asset) {
+        this.asset = asset;
+    }
+
+    public PowerUp copy() {
+        return new SpeedBoost(asset);
+    }
+
+    public void activate() {
+        System.out.println("Speed boost activated!");
+    }
+
+    public void apply(GameWorld world) {
+        world.activatePowerUp(SECONDS);
+    }
+}
+
+interface GameFactory {
+    Weapon createWeapon();
+    PowerUp createPowerUp();
+
+    // Same as the create methods but with the model loaded, which is slow
+    Weapon loadWeapon();
+    PowerUp loadPowerUp();
+
+    String getDifficulty();
+}
+
+class EasyGameFactory implements GameFactory {
+    public Weapon createWeapon() {
+        return new Sword();
+    }
+
+    public PowerUp createPowerUp() {
+        return new HealthPotion();
+    }
+
+    public Weapon loadWeapon() {
+        return Sword.load();
+    }
+
+    public PowerUp loadPowerUp() {
+        return HealthPotion.load();
+    }
+
+    public String getDifficulty() {
+        return "Easy";
+    }
+}
+
+class HardGameFactory implements GameFactory {
+    public Weapon createWeapon() {
+        return new Bow();
+    }
+
+    public PowerUp createPowerUp() {
+        return new SpeedBoost();
+    }
+
+    public Weapon loadWeapon() {
+        return Bow.load();
+    }
+
+    public PowerUp loadPowerUp() {
+        return SpeedBoost.load();
+    }
+
+    public String getDifficulty() {
+        return "Hard";
     }
 }
 
@@ -0,0 +1,342 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Fused DSP Chain: the effects of a stack of player decorators, run as one
+// pass over each block. Every equalizer band is a biquad filter and every
+// volume control a gain. Both are linear, so the chain runs all active
+// filters back to back on each sample and applies the combined gain once at
+// the end, instead of one pass over the block per decorator.
+//
+// Stages hold their settings in immutable objects published through a
+// volatile field. The audio thread reads each stage's settings once per
+// block and only recomputes coefficients when a reference has changed, so
+// settings can change from any thread without locks.
+public class DspChain implements PcmPipeline.BlockProcessor {
+    public abstract static class Stage {
+        // Filter slots this stage contributes
+        abstract int sections();
+
+        // Current settings; a new object whenever they change
+        abstract Object settings();
+
+        // Writes b0, b1, b2, a1, a2 for each of this stage's sections
+        abstract void coefficients(Object settings, int sampleRate, float[] out, int offset);
+
+        abstract float gain(Object settings);
+    }
+
+    // Three-band equalizer: low shelf at 200 Hz, peak at 1 kHz, high shelf at 4 kHz
+    public static final class Equalizer extends Stage {
+        private volatile float[] bandGainsDb = {0, 0, 0};
+
+        public void setPreset(String setting) {
+            switch (setting) {
+                case "Flat":
+                    setBands(0, 0, 0);
+                    break;
+                case "Bass Boost":
+                    setBands(6, 0, 0);
+                    break;
+                case "Treble Boost":
+                    setBands(0, 0, 6);
+                    break;
+                case "Vocal":
+                    setBands(-2, 4, -1);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown equalizer setting: " + setting);
+            }
+        }
+
+        public void setBands(float lowDb, float midDb, float highDb) {
+            bandGainsDb = new float[] {lowDb, midDb, highDb};
+        }
+
+        @Override
+        int sections() {
+            return 3;
+        }
+
+        @Override
+        Object settings() {
+            return bandGainsDb;
+        }
+
+        @Override
+        void coefficients(Object settings, int sampleRate, float[] out, int offset) {
+            float[] gains = (float[]) settings;
+            shelf(true, 200, gains[0], sampleRate, out, offset);
+            peak(1_000, 1, gains[1], sampleRate, out, offset + 5);
+            shelf(false, 4_000, gains[2], sampleRate, out, offset + 10);
+        }
+
+        @Override
+        float gain(Object settings) {
+            return 1;
+        }
+
+        // Audio EQ cookbook shelving filter with slope 1
+        private static void shelf(boolean low, double frequency, float gainDb, int sampleRate,
+                float[] out, int offset) {
+            double a = Math.pow(10, gainDb / 40);
+            double w0 = 2 * Math.PI * frequency / sampleRate;
+            double cos = Math.cos(w0);
+            double beta = 2 * Math.sqrt(a) * Math.sin(w0) / 2 * Math.sqrt(2);
+            double sign = low ? 1 : -1;
+            double b0 = a * ((a + 1) - sign * (a - 1) * cos + beta);
+            double b1 = sign * 2 * a * ((a - 1) - sign * (a + 1) * cos);
+            double b2 = a * ((a + 1) - sign * (a - 1) * cos - beta);
+            double a0 = (a + 1) + sign * (a - 1) * cos + beta;
+            double a1 = -sign * 2 * ((a - 1) + sign * (a + 1) * cos);
+            double a2 = (a + 1) + sign * (a - 1) * cos - beta;
+            normalize(b0, b1, b2, a0, a1, a2, out, offset);
+        }
+
+        private static void peak(double frequency, double q, float gainDb, int sampleRate,
+                float[] out, int offset) {
+            double a = Math.pow(10, gainDb / 40);
+            double w0 = 2 * Math.PI * frequency / sampleRate;
+            double alpha = Math.sin(w0) / (2 * q);
+            double cos = Math.cos(w0);
+            normalize(1 + alpha * a, -2 * cos, 1 - alpha * a, 1 + alpha / a, -2 * cos, 1 - alpha / a,
+                    out, offset);
+        }
+
+        private static void normalize(double b0, double b1, double b2, double a0, double a1, double a2,
+                float[] out, int offset) {
+            out[offset] = (float) (b0 / a0);
+            out[offset + 1] = (float) (b1 / a0);
+            out[offset + 2] = (float) (b2 / a0);
+            out[offset + 3] = (float) (a1 / a0);
+            out[offset + 4] = (float) (a2 / a0);
+        }
+    }
+
+    // Volume from 0 to 100, on a squared curve so it sounds roughly even
+    public static final class Gain extends Stage {
+        // A one-element array, like the equalizer's bands, so reading it never unboxes
+        private volatile float[] gain;
+
+        public Gain(int volume) {
+            setVolume(volume);
+        }
+
+        public void setVolume(int volume) {
+            float level = Math.max(0, Math.min(100, volume)) / 100f;
+            gain = new float[] {level * level};
+        }
+
+        @Override
+        int sections() {
+            return 0;
+        }
+
+        @Override
+        Object settings() {
+            return gain;
+        }
+
+        @Override
+        void coefficients(Object settings, int sampleRate, float[] out, int offset) {
+        }
+
+        @Override
+        float gain(Object settings) {
+            return ((float[]) settings)[0];
+        }
+    }
+
+    private final Stage[] stages;
+    private final Object[] seen;
+    private final int[] firstSection;
+    // b0, b1, b2, a1, a2 per section slot
+    private final float[] coefficients;
+    // Slots that are not pass-through, in processing order
+    private int[] active = new int[0];
+    // z1, z2 per active slot and channel
+    private float[] state = new float[0];
+    private int stateChannels;
+    private int sampleRate;
+    private float targetGain = 1;
+    private float currentGain = Float.NaN;
+
+    // Stages in processing order: the innermost decorator's first
+    public DspChain(List<? extends Stage> stages) {
+        this.stages = stages.toArray(new Stage[0]);
+        seen = new Object[this.stages.length];
+        firstSection = new int[this.stages.length];
+        int sections = 0;
+        for (int i = 0; i < this.stages.length; i++) {
+            firstSection[i] = sections;
+            sections += this.stages[i].sections();
+        }
+        coefficients = new float[sections * 5];
+    }
+
+    @Override
+    public void process(float[] samples, int frames, int channels, int sampleRate) {
+        refresh(channels, sampleRate);
+        int[] order = active;
+        float[] c = coefficients;
+        float[] z = state;
+        float gain = currentGain;
+        // Ramp gain changes across the block so they do not click
+        float gainStep = (targetGain - gain) / frames;
+        for (int f = 0, i = 0; f < frames; f++) {
+            gain += gainStep;
+            for (int ch = 0; ch < channels; ch++, i++) {
+                float x = samples[i];
+                for (int k = 0, s = ch * 2; k < order.length; k++, s += channels * 2) {
+                    int at = order[k] * 5;
+                    float y = c[at] * x + z[s];
+                    z[s] = c[at + 1] * x - c[at + 3] * y + z[s + 1];
+                    z[s + 1] = c[at + 2] * x - c[at + 4] * y;
+                    x = y;
+                }
+                samples[i] = x * gain;
+            }
+        }
+        currentGain = targetGain;
+    }
+
+    // Picks up settings changed since the last block
+    private void refresh(int channels, int rate) {
+        boolean rateChanged = rate != sampleRate;
+        sampleRate = rate;
+        boolean filtersChanged = rateChanged;
+        float gain = 1;
+        for (int i = 0; i < stages.length; i++) {
+            Object settings = stages[i].settings();
+            if (settings != seen[i] || rateChanged) {
+                seen[i] = settings;
+                stages[i].coefficients(settings, rate, coefficients, firstSection[i] * 5);
+                filtersChanged |= stages[i].sections() > 0;
+            }
+            gain *= stages[i].gain(settings);
+        }
+        targetGain = gain;
+        if (Float.isNaN(currentGain)) {
+            currentGain = gain;
+        }
+        if (filtersChanged || channels != stateChannels) {
+            rebuildActive(channels);
+        }
+    }
+
+    // Drops pass-through slots; filters that stay active keep their state
+    private void rebuildActive(int channels) {
+        int slots = coefficients.length / 5;
+        int count = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (!isPassThrough(slot)) {
+                count++;
+            }
+        }
+        int[] next = new int[count];
+        for (int slot = 0, k = 0; slot < slots; slot++) {
+            if (!isPassThrough(slot)) {
+                next[k++] = slot;
+            }
+        }
+        float[] nextState = new float[next.length * channels * 2];
+        if (channels == stateChannels) {
+            for (int k = 0; k < next.length; k++) {
+                int old = Arrays.binarySearch(active, next[k]);
+                if (old >= 0) {
+                    System.arraycopy(state, old * channels * 2, nextState, k * channels * 2, channels * 2);
+                }
+            }
+        }
+        active = next;
+        state = nextState;
+        stateChannels = channels;
+    }
+
+    private boolean isPassThrough(int slot) {
+        int at = slot * 5;
+        return coefficients[at] == 1 && coefficients[at + 1] == coefficients[at + 3]
+                && coefficients[at + 2] == coefficients[at + 4];
+    }
+}
+
+// Chain benchmark: samples per second on one thread as the decorator stack
+// gets deeper, fused into one pass versus one pass per decorator, while
+// another thread keeps changing the settings.
+// Run with: java DspChainBenchmark [maxDepth]
+class DspChainBenchmark {
+    private static final int FRAMES = 1_024;
+    private static final int CHANNELS = 2;
+    private static final long RUN_NANOS = 400_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        int maxDepth = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        float[] source = new float[FRAMES * CHANNELS];
+        for (int i = 0; i < source.length; i++) {
+            source[i] = (float) Math.sin(i * 0.05) * 0.5f;
+        }
+
+        for (int depth = 1; depth <= maxDepth; depth++) {
+            List<DspChain.Stage> stages = new ArrayList<>();
+            for (int i = 0; i < depth; i++) {
+                if (i % 2 == 0) {
+                    DspChain.Equalizer equalizer = new DspChain.Equalizer();
+                    equalizer.setBands(3, -2, 1);
+                    stages.add(equalizer);
+                } else {
+                    stages.add(new DspChain.Gain(90));
+                }
+            }
+            DspChain fused = new DspChain(stages);
+            List<DspChain> perStage = new ArrayList<>();
+            for (DspChain.Stage stage : stages) {
+                perStage.add(new DspChain(List.of(stage)));
+            }
+
+            Thread tweaker = new Thread(() -> {
+                int step = 0;
+                while (!Thread.currentThread().isInterrupted()) {
+                    for (DspChain.Stage stage : stages) {
+                        if (stage instanceof DspChain.Gain) {
+                            ((DspChain.Gain) stage).setVolume(80 + step % 20);
+                        }
+                    }
+                    step++;
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            tweaker.setDaemon(true);
+            tweaker.start();
+
+            double fusedRate = measure(source, List.of(fused));
+            double separateRate = measure(source, perStage);
+            tweaker.interrupt();
+            tweaker.join();
+
+            System.out.printf("depth %d: fused %.1f M samples/s, one pass per decorator %.1f M samples/s%n",
+                    depth, fusedRate / 1e6, separateRate / 1e6);
+        }
+    }
+
+    // Each block starts from the source so repeated gain cannot decay it into denormals
+    private static double measure(float[] source, List<DspChain> passes) {
+        float[] block = new float[source.length];
+        long samples = 0;
+        long begin = System.nanoTime();
+        long end = begin + RUN_NANOS;
+        while (System.nanoTime() < end) {
+            for (int repeat = 0; repeat < 16; repeat++) {
+                System.arraycopy(source, 0, block, 0, block.length);
+                for (DspChain pass : passes) {
+                    pass.process(block, FRAMES, CHANNELS, 44_100);
+                }
+                samples += block.length;
+            }
+        }
+        return samples / ((System.nanoTime() - begin) / 1e9);
+    }
+}
@@ -1,15 +1,111 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
 public class LoginManager {
     // Single instance of LoginManager
     private static LoginManager instance;
     
-    // User login state
-    private boolean isLoggedIn;
-    private String currentUser;
+    // User login state, replaced as a whole so the expiry timer can end a
+    // session while another thread is using it
+    private final AtomicReference<LoginSession> session = new AtomicReference<>();
+
+    // Session timeouts, enforced by a timing wheel and checked again whenever the session is used
+    private static final long IDLE_TIMEOUT_MILLIS = 15 * 60_000L;
+    private static final long ABSOLUTE_TIMEOUT_MILLIS = 8 * 60 * 60_000L;
+    private static final long TIMEOUT_TICK_MILLIS = 1_000;
+    private final TimingWheel<LoginSession> timeouts = new TimingWheel<>(TIMEOUT_TICK_MILLIS, this::expire);
+
+    // Notified on the session-expiry thread, so neither a slow listener nor a
+    // blocked audit log can hold up the timing wheel
+    private final List<SessionExpiryListener> expiryListeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService expiryNotifier = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "login-session-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class LoginSession {
+        final String user;
+        final long loginTime;
+        volatile long lastActivity;
+
+        LoginSession(String user, long now) {
+            this.user = user;
+            this.loginTime = now;
+            this.lastActivity = now;
+        }
+    }
+
+    // In-memory balances, kept in cents
+    private final Ledger ledger;
+
+    // Rate limits login attempts before any credential work is done
+    private final LoginThrottle throttle = new LoginThrottle(5, 60_000, 1_000, 2_000, 10 * 60_000);
+
+    // Salted password hashes, memory-mapped from disk
+    private final CredentialStore credentials;
+
+    // Asynchronous audit trail of logins and money movements
+    private final AuditLog audit = AuditLog.getInstance();
+
+    // Console messages for logins and successful operations, off unless
+    // -Dloginmanager.verbose=true: the audit log is the per-operation record
+    private static final boolean VERBOSE = Boolean.getBoolean("loginmanager.verbose");
 
     // Private constructor to prevent instantiation
     private LoginManager() {
-        isLoggedIn = false;
-        currentUser = null;
+        Path dataDir = Paths.get(System.getProperty("ledger.dir", "ledger-data"));
+        ledger = new Ledger();
+        ledger.attach(new LedgerJournal(dataDir, 100_000));
+        ledger.openAccountIfAbsent("admin", 100000);
+        try {
+            Path credentialFile = Paths.get(System.getProperty("credentials.file",
+                    dataDir.resolve("credentials.db").toString()));
+            if (!Files.exists(credentialFile)) {
+                // First run: seed the store with the default administrator
+                new CredentialStoreBuilder().add("admin", "admin123".toCharArray()).write(credentialFile);
+            }
+            credentials = CredentialStore.open(credentialFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open credential store", e);
+        }
     }
 
     // Public method to provide access to the singleton instance
@@ -22,34 +118,115 @@ public class LoginManager {
 
     // Method to handle user login
     public boolean login(String username, String password) {
-        // Simplified authentication logic
-        if (username.equals("admin") && password.equals("admin123")) {
-            isLoggedIn = true;
-            currentUser = username;
-            System.out.println("User logged in successfully.");
+        if (!throttle.tryAcquire(username)) {
+            audit.record(AuditLog.Event.LOGIN_THROTTLED, username);
+            if (VERBOSE) {
+                System.out.println("Too many login attempts. Please try again later.");
+            }
+            return false;
+        }
+        if (credentials.verify(username, password.toCharArray())) {
+            // Before the session exists, so a failure here leaves none behind
+            ledger.openAccountIfAbsent(username, 0);
+            LoginSession started = new LoginSession(username, timeouts.now());
+            // A session this replaces is dropped when its timer next fires
+            session.set(started);
+            timeouts.schedule(started, deadline(started));
+            audit.record(AuditLog.Event.LOGIN, username);
+            if (VERBOSE) {
+                System.out.println("User logged in successfully.");
+            }
             return true;
         } else {
-            System.out.println("Invalid username or password.");
+            audit.record(AuditLog.Event.LOGIN_FAILED, username);
+            if (VERBOSE) {
+                System.out.println("Invalid username or password.");
+            }
             return false;
         }
     }
 
     // Method to handle user logout
     public void logout() {
-        isLoggedIn = false;
-        currentUser = null;
-        System.out.println("User logged out successfully.");
+        LoginSession ended = session.getAndSet(null);
+        if (ended != null) {
+            audit.record(AuditLog.Event.LOGOUT, ended.user);
+        }
+        if (VERBOSE) {
+            System.out.println("User logged out successfully.");
+        }
     }
 
     // Method to check if the user is logged in
     public boolean isLoggedIn() {
-        return isLoggedIn;
+        return activeSession() != null;
+    }
+
+    // Token is always null: LoginManager holds a single session
+    public void addExpiryListener(SessionExpiryListener listener) {
+        expiryListeners.add(listener);
+    }
+
+    public void removeExpiryListener(SessionExpiryListener listener) {
+        expiryListeners.remove(listener);
+    }
+
+    // The current session, or null if there is none or it has timed out;
+    // otherwise records this call as activity
+    private LoginSession activeSession() {
+        LoginSession current = session.get();
+        if (current == null) {
+            return null;
+        }
+        long now = timeouts.now();
+        if (now >= deadline(current)) {
+            if (end(current, now)) {
+                System.out.println("Session expired. Please log in again.");
+            }
+            return null;
+        }
+        current.lastActivity = now;
+        return current;
+    }
+
+    private static long deadline(LoginSession session) {
+        return Math.min(session.lastActivity + IDLE_TIMEOUT_MILLIS, session.loginTime + ABSOLUTE_TIMEOUT_MILLIS);
+    }
+
+    // Timer callback: end the session, or return its new deadline if it was used since
+    private long expire(LoginSession expiring, long now) {
+        if (session.get() != expiring) {
+            return -1;
+        }
+        long deadline = deadline(expiring);
+        if (now < deadline) {
+            return deadline;
+        }
+        end(expiring, now);
+        return -1;
+    }
+
+    // Ends a timed-out session exactly once, whether the timer or a caller saw it first
+    private boolean end(LoginSession expired, long now) {
+        if (!session.compareAndSet(expired, null)) {
+            return false;
+        }
+        SessionExpiry reason = now >= expired.loginTime + ABSOLUTE_TIMEOUT_MILLIS
+                ? SessionExpiry.ABSOLUTE : SessionExpiry.IDLE;
+        expiryNotifier.execute(() -> {
+            audit.record(AuditLog.Event.SESSION_EXPIRED, expired.user);
+            for (SessionExpiryListener listener : expiryListeners) {
+                listener.sessionExpired(null, expired.user, reason);
+            }
+        });
+        return true;
     }
 
     // Banking operation: View Balance
     public void viewBalance() {
-        if (isLoggedIn) {
-            System.out.println("Current balance: $1000");
+        LoginSession current = activeSession();
+        if (current != null) {
+            System.out.println("Current balance: $" + Ledger.format(ledger.balance(current.user)));
         } else {
             System.out.println("Please log in to view balance.");
         }
@@ -57,9 +234,23 @@ public class LoginManager {
 
     // Banking operation: Deposit
     public void deposit(double amount) {
-        if (isLoggedIn) {
-            System.out.println("Deposited: $" + amount);
-            // Implement deposit logic here
+        LoginSession current = activeSession();
+        if (current != null) {
+            long cents = validCents(amount);
+            if (cents < 0) {
+                System.out.println("Invalid amount.");
+                return;
+            }
+            try {
+                ledger.deposit(current.user, cents);
+            } catch (ArithmeticException e) {
+                System.out.println("Deposit would exceed the maximum balance.");
+                return;
+            }
+            audit.record(AuditLog.Event.DEPOSIT, current.user, cents);
+            if (VERBOSE) {
+                System.out.println("Deposited: $" + Ledger.format(cents));
+            }
         } else {
             System.out.println("Please log in to deposit money.");
         }
@@ -67,11 +258,1466 @@ public class LoginManager {
 
     // Banking operation: Withdraw
     public void withdraw(double amount) {
-        if (isLoggedIn) {
-            System.out.println("Withdrew: $" + amount);
-            // Implement withdrawal logic here
+        LoginSession current = activeSession();
+        if (current != null) {
+            long cents = validCents(amount);
+            if (cents < 0) {
+                System.out.println("Invalid amount.");
+                return;
+            }
+            if (ledger.withdraw(current.user, cents)) {
+                audit.record(AuditLog.Event.WITHDRAW, current.user, cents);
+                if (VERBOSE) {
+                    System.out.println("Withdrew: $" + Ledger.format(cents));
+                }
+            } else {
+                System.out.println("Insufficient funds.");
+            }
         } else {
             System.out.println("Please log in to withdraw money.");
         }
     }
+
+    // Banking operation: Transfer to another account
+    public void transfer(String toAccount, double amount) {
+        LoginSession current = activeSession();
+        if (current != null) {
+            if (!ledger.hasAccount(toAccount) || toAccount.equals(current.user)) {
+                System.out.println("Invalid destination account.");
+                return;
+            }
+            long cents = validCents(amount);
+            if (cents < 0) {
+                System.out.println("Invalid amount.");
+                return;
+            }
+            boolean transferred;
+            try {
+                transferred = ledger.transfer(current.user, toAccount, cents);
+            } catch (ArithmeticException e) {
+                System.out.println("Transfer would exceed the maximum balance of " + toAccount + ".");
+                return;
+            }
+            if (transferred) {
+                audit.record(AuditLog.Event.TRANSFER, current.user, toAccount, cents);
+                if (VERBOSE) {
+                    System.out.println("Transferred: $" + Ledger.format(cents) + " to " + toAccount);
+                }
+            } else {
+                System.out.println("Insufficient funds.");
+            }
+        } else {
+            System.out.println("Please log in to transfer money.");
+        }
+    }
+
+    // Banking operation: Statement of the most recent transactions, newest first
+    public void printStatement(int maxLines) {
+        LoginSession current = activeSession();
+        if (current != null) {
+            Ledger.Snapshot snapshot = ledger.snapshot();
+            System.out.println("Statement for " + current.user + " (balance $"
+                    + Ledger.format(snapshot.balance(current.user)) + "):");
+            Ledger.Statement statement = snapshot.statement(current.user);
+            for (int line = 0; line < maxLines && statement.next(); line++) {
+                System.out.println("  #" + statement.version() + "  " + Ledger.format(statement.amountCents())
+                        + (statement.amountCents() < 0 ? " debit" : " credit")
+                        + "  balance $" + Ledger.format(statement.balanceCents()));
+            }
+        } else {
+            System.out.println("Please log in to view your statement.");
+        }
+    }
+
+    // Banking operation: Batch. The login is checked once for the whole batch,
+    // operations run in order and each outcome is written into results.
+    public boolean applyBatch(TransactionBatch batch, BatchResult results) {
+        LoginSession current = activeSession();
+        if (current != null) {
+            int applied = ledger.applyBatch(current.user, batch, results);
+            audit.record(AuditLog.Event.BATCH, current.user, applied);
+            if (VERBOSE) {
+                System.out.println("Applied " + applied + " of " + batch.size() + " transactions.");
+            }
+            return true;
+        } else {
+            System.out.println("Please log in to post transactions.");
+            return false;
+        }
+    }
+
+    // Whole cents, or -1 for zero, negative, non-finite or sub-cent amounts
+    private static long validCents(double amount) {
+        double cents = amount * 100;
+        if (!(cents >= 1) || Double.isInfinite(cents) || Math.abs(cents - Math.rint(cents)) > 1e-6) {
+            return -1;
+        }
+        return Ledger.toCents(amount);
+    }
+
+    // Access to the underlying ledger for bulk or server-side callers
+    public Ledger getLedger() {
+        return ledger;
+    }
+}
+
+// Ledger: per-account balances stored as primitive long cents.
+// Each account is a chain of immutable versions, newest first. Writers
+// install a new head with one CAS (withdrawals check for sufficient funds
+// against the head they replace) and then stamp it from a global commit
+// clock; a transfer stamps both of its versions with the same number.
+// Latest-balance reads are a single volatile load, and a Snapshot reads every
+// account as of one clock value without blocking writers. The chain doubles
+// as the per-account transaction history and is trimmed to historyLimit.
+// With a journal attached, every successful change is also appended to it
+// and the caller waits for the group commit before returning.
+class Ledger {
+    private static final int DEFAULT_HISTORY_LIMIT = 1_024;
+
+    private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final int historyLimit;
+
+    // Transfers lock the stripes of both accounts, always lower index first,
+    // so two opposite transfers can never wait on each other
+    private static final int STRIPES = 64;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    // Mutations share the read side; a checkpoint takes the write side so the
+    // snapshot never sees a change that is applied but not yet journaled
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean checkpointing = new AtomicBoolean();
+    private volatile LedgerJournal journal;
+
+    // One committed (or, while version is PENDING, committing) balance
+    static final class Version {
+        static final long PENDING = Long.MAX_VALUE;
+
+        volatile long version;
+        final long balance;
+        final long delta;
+        final long timeMillis;
+        volatile Version older;
+
+        Version(long balance, long delta, Version older) {
+            this.version = PENDING;
+            this.balance = balance;
+            this.delta = delta;
+            this.timeMillis = System.currentTimeMillis();
+            this.older = older;
+        }
+    }
+
+    // Marks where a chain was trimmed; reaching it means the history is gone
+    private static final Version TRUNCATED = new Version(0, 0, null);
+
+    private static final class Account {
+        final AtomicReference<Version> head;
+        final AtomicInteger sinceTrim = new AtomicInteger();
+
+        Account(Version first) {
+            head = new AtomicReference<>(first);
+        }
+    }
+
+    public Ledger() {
+        this(DEFAULT_HISTORY_LIMIT);
+    }
+
+    public Ledger(int historyLimit) {
+        this.historyLimit = historyLimit;
+    }
+
+    // Rebuilds balances from the journal, then records every later change in it
+    public void attach(LedgerJournal journal) {
+        try {
+            journal.recover((account, delta) -> {
+                Account target = accounts.get(account);
+                if (target == null) {
+                    Version first = new Version(delta, delta, null);
+                    accounts.put(account, new Account(first));
+                    stamp(first);
+                } else {
+                    stamp(install(target, delta, false));
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not recover ledger journal", e);
+        }
+        this.journal = journal;
+    }
+
+    public void openAccount(String account, long openingCents) {
+        if (!openAccountIfAbsent(account, openingCents)) {
+            throw new IllegalStateException("Account already exists: " + account);
+        }
+    }
+
+    // False, with nothing journaled, if the account already exists
+    public boolean openAccountIfAbsent(String account, long openingCents) {
+        if (openingCents < 0) {
+            throw new IllegalArgumentException("Opening balance cannot be negative");
+        }
+        LedgerJournal journal = this.journal;
+        if (journal == null) {
+            return create(account, openingCents);
+        }
+        long seq;
+        checkpointLock.readLock().lock();
+        try {
+            if (!create(account, openingCents)) {
+                return false;
+            }
+            seq = journal.append(account, openingCents);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        commit(journal, seq);
+        return true;
+    }
+
+    private boolean create(String account, long openingCents) {
+        Version first = new Version(openingCents, openingCents, null);
+        if (accounts.putIfAbsent(account, new Account(first)) != null) {
+            return false;
+        }
+        stamp(first);
+        return true;
+    }
+
+    public boolean hasAccount(String account) {
+        return accounts.containsKey(account);
+    }
+
+    public long balance(String account) {
+        return cell(account).head.get().balance;
+    }
+
+    public long deposit(String account, long cents) {
+        requirePositive(cents);
+        Account target = cell(account);
+        LedgerJournal journal = this.journal;
+        if (journal == null) {
+            return stamp(install(target, cents, false)).balance;
+        }
+        long result;
+        long seq;
+        checkpointLock.readLock().lock();
+        try {
+            result = stamp(install(target, cents, false)).balance;
+            seq = journal.append(account, cents);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        commit(journal, seq);
+        return result;
+    }
+
+    // Returns false and leaves the balance untouched when funds are insufficient
+    public boolean withdraw(String account, long cents) {
+        requirePositive(cents);
+        Account source = cell(account);
+        LedgerJournal journal = this.journal;
+        if (journal == null) {
+            return stamp(install(source, -cents, true)) != null;
+        }
+        long seq;
+        checkpointLock.readLock().lock();
+        try {
+            if (stamp(install(source, -cents, true)) == null) {
+                return false;
+            }
+            seq = journal.append(account, -cents);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        commit(journal, seq);
+        return true;
+    }
+
+    // Moves cents between two accounts; false if the source lacks funds.
+    // Plain deposits and withdrawals stay lock-free: they touch a single
+    // account and commute with each leg of a transfer, so the stripes only
+    // need to serialise transfers against each other.
+    public boolean transfer(String from, String to, long cents) {
+        requirePositive(cents);
+        if (from.equals(to)) {
+            throw new IllegalArgumentException("Cannot transfer to the same account");
+        }
+        Account source = cell(from);
+        Account target = cell(to);
+        int first = stripe(from);
+        int second = stripe(to);
+        if (first > second) {
+            int swap = first;
+            first = second;
+            second = swap;
+        }
+        LedgerJournal journal = this.journal;
+        long seq = 0;
+        if (journal != null) {
+            checkpointLock.readLock().lock();
+        }
+        stripes[first].lock();
+        if (second != first) {
+            stripes[second].lock();
+        }
+        try {
+            Version debit = install(source, -cents, true);
+            if (debit == null) {
+                return false;
+            }
+            Version credit;
+            try {
+                credit = install(target, cents, false);
+            } catch (ArithmeticException e) {
+                // The debit is already on the chain: settle it and put the money back
+                stamp(debit);
+                stamp(install(source, cents, false));
+                throw e;
+            }
+            // Same commit number for both legs: a snapshot sees both or neither
+            long version = clock.incrementAndGet();
+            debit.version = version;
+            credit.version = version;
+            if (journal != null) {
+                seq = journal.appendTransfer(from, to, cents);
+            }
+        } finally {
+            if (second != first) {
+                stripes[second].unlock();
+            }
+            stripes[first].unlock();
+            if (journal != null) {
+                checkpointLock.readLock().unlock();
+            }
+        }
+        if (journal != null) {
+            commit(journal, seq);
+        }
+        return true;
+    }
+
+    private static int stripe(String account) {
+        int h = account.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    // Puts a PENDING version on top of the account's chain. Returns null,
+    // changing nothing, if checkFunds is set and the balance would go negative.
+    // The caller must stamp the result before installing anything else.
+    private Version install(Account account, long delta, boolean checkFunds) {
+        while (true) {
+            Version head = settled(account.head.get());
+            // Throws ArithmeticException rather than wrapping a huge balance
+            long balance = Math.addExact(head.balance, delta);
+            if (checkFunds && balance < 0) {
+                return null;
+            }
+            Version next = new Version(balance, delta, head);
+            if (account.head.compareAndSet(head, next)) {
+                trim(account, next);
+                return next;
+            }
+        }
+    }
+
+    // Gives a pending version its commit number. Because the number is taken
+    // after the version is installed, any snapshot whose clock value covers it
+    // is guaranteed to find it in the chain.
+    private Version stamp(Version pending) {
+        if (pending != null) {
+            pending.version = clock.incrementAndGet();
+        }
+        return pending;
+    }
+
+    // Waits out the few instructions between a writer's install and its stamp
+    private static Version settled(Version version) {
+        while (version.version == Version.PENDING) {
+            Thread.onSpinWait();
+        }
+        return version;
+    }
+
+    // Every historyLimit writes, cut the chain back to historyLimit versions
+    private void trim(Account account, Version head) {
+        if (account.sinceTrim.incrementAndGet() < historyLimit) {
+            return;
+        }
+        account.sinceTrim.set(0);
+        Version keep = head;
+        for (int i = 1; i < historyLimit && keep.older != null && keep.older != TRUNCATED; i++) {
+            keep = keep.older;
+        }
+        if (keep.older != null) {
+            keep.older = TRUNCATED;
+        }
+    }
+
+    // Newest version committed at or before snapshotVersion, or null if the
+    // account did not exist yet
+    private static Version visible(Version head, long snapshotVersion) {
+        for (Version v = head; v != null; v = v.older) {
+            if (v == TRUNCATED) {
+                throw new IllegalStateException("Snapshot too old: history for version "
+                        + snapshotVersion + " has been trimmed");
+            }
+            if (settled(v).version <= snapshotVersion) {
+                return v;
+            }
+        }
+        return null;
+    }
+
+    // Applies a batch to one account in order. The journal lock is taken once
+    // for the batch and the caller waits for a single group commit at the end.
+    public int applyBatch(String account, TransactionBatch batch, BatchResult results) {
+        Account target = cell(account);
+        LedgerJournal journal = this.journal;
+        int size = batch.size();
+        int applied = 0;
+        long lastSeq = 0;
+        results.reset(size);
+        if (journal != null) {
+            checkpointLock.readLock().lock();
+        }
+        try {
+            for (int i = 0; i < size; i++) {
+                long cents = batch.amount(i);
+                if (cents <= 0) {
+                    results.set(i, BatchResult.INVALID_AMOUNT, target.head.get().balance);
+                    continue;
+                }
+                long delta = batch.kind(i) == TransactionBatch.DEPOSIT ? cents : -cents;
+                Version next;
+                try {
+                    next = stamp(install(target, delta, delta < 0));
+                } catch (ArithmeticException e) {
+                    results.set(i, BatchResult.INVALID_AMOUNT, target.head.get().balance);
+                    continue;
+                }
+                if (next == null) {
+                    results.set(i, BatchResult.INSUFFICIENT_FUNDS, target.head.get().balance);
+                    continue;
+                }
+                results.set(i, BatchResult.APPLIED, next.balance);
+                applied++;
+                if (journal != null) {
+                    lastSeq = journal.append(account, delta);
+                }
+            }
+        } finally {
+            if (journal != null) {
+                checkpointLock.readLock().unlock();
+            }
+        }
+        if (journal != null && applied > 0) {
+            commit(journal, lastSeq);
+        }
+        return applied;
+    }
+
+    // Waits for the group commit, then snapshots if the journal has grown enough
+    private void commit(LedgerJournal journal, long seq) {
+        journal.awaitDurable(seq);
+        if (journal.checkpointDue() && checkpointing.compareAndSet(false, true)) {
+            checkpointLock.writeLock().lock();
+            try {
+                journal.checkpoint(this);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write ledger snapshot", e);
+            } finally {
+                checkpointLock.writeLock().unlock();
+                checkpointing.set(false);
+            }
+        }
+    }
+
+    // Latest balance of every account
+    public void forEachBalance(ObjLongConsumer<String> action) {
+        accounts.forEach((account, state) -> action.accept(account, state.head.get().balance));
+    }
+
+    // A consistent, point-in-time view of all accounts
+    public Snapshot snapshot() {
+        return new Snapshot(clock.get());
+    }
+
+    private Account cell(String account) {
+        Account state = accounts.get(account);
+        if (state == null) {
+            throw new IllegalArgumentException("Unknown account: " + account);
+        }
+        return state;
+    }
+
+    private static void requirePositive(long cents) {
+        if (cents <= 0) {
+            throw new IllegalArgumentException("Amount must be positive");
+        }
+    }
+
+    public static long toCents(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    public static String format(long cents) {
+        return String.format("%s%d.%02d", cents < 0 ? "-" : "", Math.abs(cents / 100), Math.abs(cents % 100));
+    }
+
+    // Reads every account as of one commit number. Reads never block writers;
+    // they fail with "snapshot too old" only if the history they need was trimmed.
+    public class Snapshot {
+        private final long version;
+
+        private Snapshot(long version) {
+            this.version = version;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        public boolean exists(String account) {
+            Account state = accounts.get(account);
+            return state != null && visible(state.head.get(), version) != null;
+        }
+
+        public long balance(String account) {
+            Version v = visible(cell(account).head.get(), version);
+            if (v == null) {
+                throw new IllegalArgumentException("Unknown account: " + account);
+            }
+            return v.balance;
+        }
+
+        // Fills balances[i] for accounts[i]; all values come from the same point in time
+        public void balances(String[] names, long[] balances) {
+            for (int i = 0; i < names.length; i++) {
+                balances[i] = balance(names[i]);
+            }
+        }
+
+        public void forEachBalance(ObjLongConsumer<String> action) {
+            accounts.forEach((account, state) -> {
+                Version v = visible(state.head.get(), version);
+                if (v != null) {
+                    action.accept(account, v.balance);
+                }
+            });
+        }
+
+        public Statement statement(String account) {
+            return new Statement(visible(cell(account).head.get(), version));
+        }
+    }
+
+    // Streams an account's transactions, newest first, without copying them.
+    // Call next() before reading each entry; it returns false at the end of
+    // the retained history.
+    public static class Statement {
+        private Version next;
+        private Version current;
+
+        private Statement(Version start) {
+            next = start;
+        }
+
+        public boolean next() {
+            if (next == null || next == TRUNCATED) {
+                current = null;
+                return false;
+            }
+            current = next;
+            next = current.older;
+            return true;
+        }
+
+        public long version() {
+            return current.version;
+        }
+
+        public long timeMillis() {
+            return current.timeMillis;
+        }
+
+        public long amountCents() {
+            return current.delta;
+        }
+
+        public long balanceCents() {
+            return current.balance;
+        }
+    }
+}
+
+// Login Throttle: per-username and global token buckets.
+// Each bucket is a single AtomicLong holding its "theoretical arrival time"
+// (GCRA), so taking a token is one CAS and a rejection is just a read.
+// Idle per-user buckets are dropped by a timing wheel that is advanced by
+// callers as time passes, keeping memory bounded by recently active users.
+class LoginThrottle {
+    private static final int WHEEL_SLOTS = 64;
+
+    private final long userInterval;
+    private final long userTolerance;
+    private final long globalInterval;
+    private final long globalTolerance;
+    private final long idleNanos;
+    private final long tickNanos;
+    private final long origin = System.nanoTime();
+
+    private final AtomicLong globalBucket = new AtomicLong();
+    private final ConcurrentHashMap<String, Bucket> userBuckets = new ConcurrentHashMap<>();
+
+    // Timing wheel of usernames, one slot per tick; slots are swept as time moves on
+    private final ConcurrentLinkedQueue<String>[] wheel;
+    private final AtomicLong sweptTick = new AtomicLong();
+
+    private static final class Bucket {
+        final AtomicLong arrival = new AtomicLong();
+        volatile long lastSeen;
+    }
+
+    // userBurst attempts per userWindowMillis for each username, globalPerSecond
+    // attempts per second (bursting to globalBurst) across all users
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LoginThrottle(int userBurst, long userWindowMillis, int globalPerSecond, int globalBurst, long idleMillis) {
+        userInterval = userWindowMillis * 1_000_000L / userBurst;
+        userTolerance = userInterval * (userBurst - 1);
+        globalInterval = 1_000_000_000L / globalPerSecond;
+        globalTolerance = globalInterval * (globalBurst - 1);
+        idleNanos = idleMillis * 1_000_000L;
+        tickNanos = Math.max(1, idleNanos / (WHEEL_SLOTS / 2));
+        wheel = new ConcurrentLinkedQueue[WHEEL_SLOTS];
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    public boolean tryAcquire(String username) {
+        long now = System.nanoTime() - origin;
+        advance(now);
+        Bucket bucket = userBuckets.get(username);
+        if (bucket == null) {
+            Bucket created = new Bucket();
+            created.arrival.set(now);
+            bucket = userBuckets.putIfAbsent(username, created);
+            if (bucket == null) {
+                bucket = created;
+                schedule(username, now + idleNanos);
+            }
+        }
+        bucket.lastSeen = now;
+        // Per user first, so a flood against one username is stopped by its own
+        // bucket and cannot spend the global budget that every other user shares
+        return take(bucket.arrival, now, userInterval, userTolerance)
+                && take(globalBucket, now, globalInterval, globalTolerance);
+    }
+
+    public int trackedUsers() {
+        return userBuckets.size();
+    }
+
+    private static boolean take(AtomicLong arrival, long now, long interval, long tolerance) {
+        while (true) {
+            long current = arrival.get();
+            long next = Math.max(current, now) + interval;
+            if (next - now > tolerance + interval) {
+                return false;
+            }
+            if (arrival.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    private void schedule(String username, long deadline) {
+        long ticks = Math.min(deadline / tickNanos, sweptTick.get() + WHEEL_SLOTS - 1);
+        wheel[(int) (ticks % WHEEL_SLOTS)].add(username);
+    }
+
+    // Whichever caller first sees a new tick sweeps the slots it skipped over.
+    // Users still active are rescheduled; the rest are dropped.
+    private void advance(long now) {
+        long tick = now / tickNanos;
+        long swept = sweptTick.get();
+        if (tick <= swept || !sweptTick.compareAndSet(swept, tick)) {
+            return;
+        }
+        for (long t = swept + 1; t <= tick && t <= swept + WHEEL_SLOTS; t++) {
+            ConcurrentLinkedQueue<String> slot = wheel[(int) (t % WHEEL_SLOTS)];
+            for (int pending = slot.size(); pending > 0; pending--) {
+                String username = slot.poll();
+                if (username == null) {
+                    break;
+                }
+                Bucket bucket = userBuckets.get(username);
+                if (bucket == null) {
+                    continue;
+                }
+                long deadline = bucket.lastSeen + idleNanos;
+                if (deadline <= now) {
+                    userBuckets.remove(username, bucket);
+                } else {
+                    schedule(username, deadline);
+                }
+            }
+        }
+    }
+}
+
+// Credential Store: salted PBKDF2 password hashes in a memory-mapped file.
+// Layout: header, bloom filter bits, then an open-addressing table of
+// fixed-size slots. Nothing is parsed onto the heap at startup; the bloom
+// filter turns away unknown usernames before the table is probed, and a
+// probe is O(1) expected because the table is kept at most half full.
+class CredentialStore {
+    static final int MAGIC = 0x43524431; // "CRD1"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final int SLOT_BYTES = 128;
+    static final int MAX_NAME_BYTES = 78;
+    static final int SALT_BYTES = 16;
+    static final int HASH_BYTES = 32;
+    static final int BLOOM_HASHES = 7;
+    // Slot layout: [byte nameLength][name][salt][hash], nameLength 0 = empty
+    static final int SALT_OFFSET = 1 + MAX_NAME_BYTES;
+    static final int HASH_OFFSET = SALT_OFFSET + SALT_BYTES;
+    private static final int CHUNK_SHIFT = 30;
+
+    private final MappedByteBuffer[] chunks;
+    private final long bloomBits;
+    private final long bloomOffset;
+    private final long tableOffset;
+    private final long slotMask;
+    private final int iterations;
+
+    private CredentialStore(MappedByteBuffer[] chunks, long bloomBits, long slotCount, int iterations) {
+        this.chunks = chunks;
+        this.bloomBits = bloomBits;
+        this.bloomOffset = HEADER_BYTES;
+        this.tableOffset = HEADER_BYTES + bloomBits / 8;
+        this.slotMask = slotCount - 1;
+        this.iterations = iterations;
+    }
+
+    public static CredentialStore open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + (1L << CHUNK_SHIFT) - 1) >> CHUNK_SHIFT)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i << CHUNK_SHIFT;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << CHUNK_SHIFT, size - start));
+            }
+            if (size < HEADER_BYTES || chunks[0].getInt(0) != MAGIC || chunks[0].getInt(4) != VERSION) {
+                throw new IOException("Unsupported credential store: " + file);
+            }
+            return new CredentialStore(chunks, chunks[0].getLong(8), chunks[0].getLong(16), chunks[0].getInt(24));
+        }
+    }
+
+    public boolean verify(String username, char[] password) {
+        try {
+            byte[] name = username.getBytes(StandardCharsets.UTF_8);
+            if (name.length == 0 || name.length > MAX_NAME_BYTES) {
+                return false;
+            }
+            long hash = hash64(name);
+            if (!mightContain(hash)) {
+                return false;
+            }
+            long slot = findSlot(name, hash);
+            if (slot < 0) {
+                return false;
+            }
+            byte[] salt = new byte[SALT_BYTES];
+            byte[] expected = new byte[HASH_BYTES];
+            for (int i = 0; i < SALT_BYTES; i++) {
+                salt[i] = byteAt(slot + SALT_OFFSET + i);
+            }
+            for (int i = 0; i < HASH_BYTES; i++) {
+                expected[i] = byteAt(slot + HASH_OFFSET + i);
+            }
+            return MessageDigest.isEqual(expected, hashPassword(password, salt, iterations));
+        } finally {
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    public boolean mightContain(String username) {
+        return mightContain(hash64(username.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Long.remainderUnsigned(h1 + (long) i * h2, bloomBits);
+            if ((byteAt(bloomOffset + (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Linear probing from the home slot; returns the slot's file offset or -1
+    private long findSlot(byte[] name, long hash) {
+        for (long i = hash & slotMask, probes = 0; probes <= slotMask; i = (i + 1) & slotMask, probes++) {
+            long slot = tableOffset + i * SLOT_BYTES;
+            int length = byteAt(slot) & 0xFF;
+            if (length == 0) {
+                return -1;
+            }
+            if (length == name.length && nameMatches(slot, name)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nameMatches(long slot, byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            if (byteAt(slot + 1 + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte byteAt(long offset) {
+        return chunks[(int) (offset >>> CHUNK_SHIFT)].get((int) (offset & ((1L << CHUNK_SHIFT) - 1)));
+    }
+
+    // 64-bit FNV-1a followed by a murmur finaliser to spread the bits
+    static long hash64(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static byte[] hashPassword(char[] password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BYTES * 8);
+            try {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 is not available", e);
+        }
+    }
+}
+
+// Builds a credential store file for CredentialStore
+class CredentialStoreBuilder {
+    private static final int DEFAULT_ITERATIONS = 120_000;
+
+    private final SecureRandom random = new SecureRandom();
+    private final List<byte[]> names = new ArrayList<>();
+    private final List<byte[]> salts = new ArrayList<>();
+    private final List<byte[]> hashes = new ArrayList<>();
+    private final int iterations;
+
+    public CredentialStoreBuilder() {
+        this(DEFAULT_ITERATIONS);
+    }
+
+    public CredentialStoreBuilder(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public CredentialStoreBuilder add(String username, char[] password) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        if (name.length == 0 || name.length > CredentialStore.MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Username must be 1-" + CredentialStore.MAX_NAME_BYTES + " bytes");
+        }
+        byte[] salt = new byte[CredentialStore.SALT_BYTES];
+        random.nextBytes(salt);
+        names.add(name);
+        salts.add(salt);
+        hashes.add(CredentialStore.hashPassword(password, salt, iterations));
+        Arrays.fill(password, '\0');
+        return this;
+    }
+
+    public void write(Path file) throws IOException {
+        int count = names.size();
+        long slotCount = Long.highestOneBit(Math.max(2, count) * 2L - 1) << 1;
+        // About 10 bits per entry keeps false positives near 1% with 7 hashes
+        long bloomBits = Math.max(64, ((long) count * 10 + 63) / 64 * 64);
+        long size = CredentialStore.HEADER_BYTES + bloomBits / 8 + slotCount * CredentialStore.SLOT_BYTES;
+
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(CredentialStore.HEADER_BYTES);
+            header.putInt(CredentialStore.MAGIC).putInt(CredentialStore.VERSION)
+                    .putLong(bloomBits).putLong(slotCount).putInt(iterations).flip();
+            channel.write(header, 0);
+
+            long tableOffset = CredentialStore.HEADER_BYTES + bloomBits / 8;
+            long[] bloom = new long[(int) (bloomBits / 64)];
+            ByteBuffer slot = ByteBuffer.allocate(1);
+            for (int n = 0; n < count; n++) {
+                byte[] name = names.get(n);
+                long hash = CredentialStore.hash64(name);
+                int h1 = (int) hash;
+                int h2 = (int) (hash >>> 32);
+                for (int i = 0; i < CredentialStore.BLOOM_HASHES; i++) {
+                    long bit = Long.remainderUnsigned(h1 + (long) i * h2, bloomBits);
+                    bloom[(int) (bit >>> 6)] |= 1L << (bit & 63);
+                }
+                long index = hash & (slotCount - 1);
+                while (true) {
+                    slot.clear();
+                    if (channel.read(slot, tableOffset + index * CredentialStore.SLOT_BYTES) <= 0 || slot.get(0) == 0) {
+                        break;
+                    }
+                    index = (index + 1) & (slotCount - 1);
+                }
+                ByteBuffer record = ByteBuffer.allocate(CredentialStore.SLOT_BYTES);
+                record.put((byte) name.length).put(name)
+                        .position(CredentialStore.SALT_OFFSET);
+                record.put(salts.get(n)).put(hashes.get(n)).clear();
+                channel.write(record, tableOffset + index * CredentialStore.SLOT_BYTES);
+            }
+            // Bloom bits are stored little-endian within each byte: bit b lives in byte b / 8
+            ByteBuffer bits = ByteBuffer.allocate((int) (bloomBits / 8)).order(ByteOrder.LITTLE_ENDIAN);
+            for (long word : bloom) {
+                bits.putLong(word);
+            }
+            bits.flip();
+            channel.write(bits, CredentialStore.HEADER_BYTES);
+            if (channel.size() < size) {
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
+
+// Batch of deposits and withdrawals kept in primitive arrays, reusable via clear()
+class TransactionBatch {
+    public static final byte DEPOSIT = 1;
+    public static final byte WITHDRAW = 2;
+
+    private byte[] kinds;
+    private long[] amounts;
+    private int size;
+
+    public TransactionBatch(int capacity) {
+        kinds = new byte[Math.max(1, capacity)];
+        amounts = new long[Math.max(1, capacity)];
+    }
+
+    public TransactionBatch deposit(long cents) {
+        return add(DEPOSIT, cents);
+    }
+
+    public TransactionBatch withdraw(long cents) {
+        return add(WITHDRAW, cents);
+    }
+
+    private TransactionBatch add(byte kind, long cents) {
+        if (size == kinds.length) {
+            kinds = Arrays.copyOf(kinds, size * 2);
+            amounts = Arrays.copyOf(amounts, size * 2);
+        }
+        kinds[size] = kind;
+        amounts[size] = cents;
+        size++;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte kind(int index) {
+        return kinds[index];
+    }
+
+    public long amount(int index) {
+        return amounts[index];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
+
+// Per-item outcome of a batch: status code and balance after the item, in cents
+class BatchResult {
+    public static final byte APPLIED = 0;
+    public static final byte INSUFFICIENT_FUNDS = 1;
+    public static final byte INVALID_AMOUNT = 2;
+
+    private byte[] statuses = new byte[0];
+    private long[] balances = new long[0];
+    private int size;
+
+    void reset(int newSize) {
+        if (statuses.length < newSize) {
+            statuses = new byte[newSize];
+            balances = new long[newSize];
+        }
+        size = newSize;
+    }
+
+    void set(int index, byte status, long balanceCents) {
+        statuses[index] = status;
+        balances[index] = balanceCents;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte status(int index) {
+        return statuses[index];
+    }
+
+    public long balanceAfter(int index) {
+        return balances[index];
+    }
+}
+
+// Durable Journal: append-only, memory-mapped log of balance changes.
+// Record layout: [int payloadLength][long seq][long deltaCents][short nameLength][name][int crc32]
+// A transfer sets the top bit of nameLength and carries a second
+// [long deltaCents][short nameLength][name] entry in the same checksummed
+// payload, so both legs replay or neither does.
+// A zero length marks the end of the log; a bad checksum marks a torn tail.
+// Writers append under a short lock and then share one force() per batch
+// (group commit). Every checkpointEvery records the balances are written to
+// a snapshot and a fresh journal generation is started, so replay stays short.
+class LedgerJournal {
+    private static final int MAGIC = 0x4C444A31;          // "LDJ1"
+    private static final int SNAPSHOT_MAGIC = 0x4C44534E; // "LDSN"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int FIXED_PAYLOAD_BYTES = 8 + 8 + 2;
+    private static final int TRANSFER_FLAG = 0x8000;
+    private static final long INITIAL_MAP_BYTES = 16L << 20;
+
+    private final Path dir;
+    private final long checkpointEvery;
+
+    // Guards the mapping, write position and sequence numbers
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long generation;
+    private long nextSeq = 1;
+    private volatile long recordsSinceCheckpoint;
+
+    // Group commit state
+    private final Object syncMonitor = new Object();
+    private long durableSeq;
+    private boolean syncing;
+
+    public LedgerJournal(Path dir, long checkpointEvery) {
+        this.dir = dir;
+        this.checkpointEvery = checkpointEvery;
+    }
+
+    // Replays the latest snapshot and the journal after it, then opens for appends
+    public void recover(ObjLongConsumer<String> apply) throws IOException {
+        Files.createDirectories(dir);
+        long lastSeq = 0;
+        Path snapshot = dir.resolve("ledger.snapshot");
+        if (Files.exists(snapshot)) {
+            byte[] bytes = Files.readAllBytes(snapshot);
+            if (bytes.length < 4) {
+                throw new IOException("Corrupt ledger snapshot: " + snapshot);
+            }
+            crc.reset();
+            crc.update(bytes, 0, bytes.length - 4);
+            if ((int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+                throw new IOException("Corrupt ledger snapshot: " + snapshot);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported ledger snapshot: " + snapshot);
+            }
+            generation = in.readLong();
+            lastSeq = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                apply.accept(in.readUTF(), in.readLong());
+            }
+        }
+
+        openGeneration(generation);
+        int position = HEADER_BYTES;
+        byte[] name = new byte[Short.MAX_VALUE];
+        while (position + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < FIXED_PAYLOAD_BYTES || position + 4 + length + 4 > buffer.capacity()) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.slice(position + 4, length));
+            if ((int) crc.getValue() != buffer.getInt(position + 4 + length)) {
+                break;
+            }
+            long seq = buffer.getLong(position + 4);
+            int entry = position + 12;
+            boolean more;
+            do {
+                long delta = buffer.getLong(entry);
+                int nameLength = buffer.getShort(entry + 8) & 0xFFFF;
+                more = (nameLength & TRANSFER_FLAG) != 0;
+                nameLength &= ~TRANSFER_FLAG;
+                buffer.get(entry + 10, name, 0, nameLength);
+                apply.accept(new String(name, 0, nameLength, StandardCharsets.UTF_8), delta);
+                entry += 10 + nameLength;
+            } while (more);
+            lastSeq = seq;
+            recordsSinceCheckpoint++;
+            position += 4 + length + 4;
+        }
+        // Clear a torn tail so it cannot be mistaken for records appended later
+        if (position + 4 <= buffer.capacity() && buffer.getInt(position) != 0) {
+            for (int i = position; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+        buffer.position(position);
+        nextSeq = lastSeq + 1;
+        durableSeq = lastSeq;
+
+        try (var stale = Files.newDirectoryStream(dir, "ledger.journal.*")) {
+            for (Path path : stale) {
+                if (!path.equals(journalPath(generation))) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    // Appends one change and returns its sequence number; not yet durable
+    public long append(String account, long deltaCents) {
+        byte[] name = encodeName(account);
+        int length = FIXED_PAYLOAD_BYTES + name.length;
+        appendLock.lock();
+        try {
+            long seq = nextSeq++;
+            ByteBuffer payload = scratch(length);
+            payload.putLong(seq).putLong(deltaCents).putShort((short) name.length).put(name);
+            writeRecord(length);
+            return seq;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Appends both legs of a transfer as one record
+    public long appendTransfer(String from, String to, long cents) {
+        byte[] fromName = encodeName(from);
+        byte[] toName = encodeName(to);
+        int length = FIXED_PAYLOAD_BYTES + fromName.length + 8 + 2 + toName.length;
+        appendLock.lock();
+        try {
+            long seq = nextSeq++;
+            ByteBuffer payload = scratch(length);
+            payload.putLong(seq).putLong(-cents).putShort((short) (fromName.length | TRANSFER_FLAG)).put(fromName)
+                    .putLong(cents).putShort((short) toName.length).put(toName);
+            writeRecord(length);
+            return seq;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private static byte[] encodeName(String account) {
+        byte[] name = account.getBytes(StandardCharsets.UTF_8);
+        if (name.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Account name too long");
+        }
+        return name;
+    }
+
+    private ByteBuffer scratch(int length) {
+        if (scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        return scratch;
+    }
+
+    // Copies the payload in scratch into the mapping, framed by length and checksum
+    private void writeRecord(int length) {
+        ensureCapacity(4 + length + 4 + 4);
+        crc.reset();
+        crc.update(scratch.array(), 0, length);
+        buffer.putInt(length).put(scratch.array(), 0, length).putInt((int) crc.getValue());
+        recordsSinceCheckpoint++;
+    }
+
+    // Blocks until seq is on disk. The first waiter forces everything appended
+    // so far; writers that arrive meanwhile are covered by that same force.
+    public void awaitDurable(long seq) {
+        boolean interrupted = false;
+        synchronized (syncMonitor) {
+            while (durableSeq < seq && syncing) {
+                try {
+                    syncMonitor.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (durableSeq >= seq) {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            syncing = true;
+        }
+
+        long target;
+        MappedByteBuffer toForce;
+        appendLock.lock();
+        try {
+            target = nextSeq - 1;
+            toForce = buffer;
+        } finally {
+            appendLock.unlock();
+        }
+        boolean forced = false;
+        try {
+            toForce.force();
+            forced = true;
+        } finally {
+            synchronized (syncMonitor) {
+                if (forced && target > durableSeq) {
+                    durableSeq = target;
+                }
+                syncing = false;
+                syncMonitor.notifyAll();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean checkpointDue() {
+        return recordsSinceCheckpoint >= checkpointEvery;
+    }
+
+    // Writes all balances to a new snapshot and starts the next journal
+    // generation. The caller must hold off mutations while this runs.
+    public void checkpoint(Ledger ledger) throws IOException {
+        long lastSeq;
+        appendLock.lock();
+        try {
+            lastSeq = nextSeq - 1;
+            long nextGeneration = generation + 1;
+            writeSnapshot(ledger, nextGeneration, lastSeq);
+
+            FileChannel previous = channel;
+            long previousGeneration = generation;
+            openGeneration(nextGeneration);
+            buffer.position(HEADER_BYTES);
+            previous.close();
+            Files.deleteIfExists(journalPath(previousGeneration));
+            recordsSinceCheckpoint = 0;
+        } finally {
+            appendLock.unlock();
+        }
+        synchronized (syncMonitor) {
+            if (lastSeq > durableSeq) {
+                durableSeq = lastSeq;
+            }
+            syncMonitor.notifyAll();
+        }
+    }
+
+    private void writeSnapshot(Ledger ledger, long nextGeneration, long lastSeq) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entries);
+        int[] count = new int[1];
+        ledger.forEachBalance((account, cents) -> {
+            try {
+                entryOut.writeUTF(account);
+                entryOut.writeLong(cents);
+                count[0]++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(nextGeneration);
+        out.writeLong(lastSeq);
+        out.writeInt(count[0]);
+        entries.writeTo(out);
+        crc.reset();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        Path temp = dir.resolve("ledger.snapshot.tmp");
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+            while (data.hasRemaining()) {
+                file.write(data);
+            }
+            file.force(true);
+        }
+        Files.move(temp, dir.resolve("ledger.snapshot"),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void openGeneration(long newGeneration) throws IOException {
+        channel = FileChannel.open(journalPath(newGeneration), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean fresh = channel.size() == 0;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_MAP_BYTES));
+        if (fresh) {
+            buffer.putInt(0, MAGIC).putInt(4, VERSION);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported ledger journal: " + journalPath(newGeneration));
+        }
+        generation = newGeneration;
+    }
+
+    // Grows the mapping when the next record would not fit. The old mapping is
+    // forced first so nothing written through it is left behind.
+    private void ensureCapacity(int needed) {
+        if (buffer.remaining() >= needed) {
+            return;
+        }
+        int position = buffer.position();
+        buffer.force();
+        try {
+            long size = Math.max((long) buffer.capacity() * 2, (long) position + needed);
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Ledger journal generation is full");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not grow ledger journal", e);
+        }
+        buffer.position(position);
+    }
+
+    private Path journalPath(long journalGeneration) {
+        return dir.resolve("ledger.journal." + journalGeneration);
+    }
+}
+
+// Transfer stress test: random transfers between accounts from many threads,
+// then checks that the total balance is unchanged and reports throughput.
+// A concurrent auditor checks the same invariant on snapshots while it runs.
+// Run with: java TransferStressTest [threads] [accounts] [seconds]
+class TransferStressTest {
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Ledger ledger = new Ledger();
+        String[] names = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            names[i] = "acct" + i;
+            ledger.openAccount(names[i], 100_00);
+        }
+        long expected = 100_00L * accounts;
+
+        LongAdder transfers = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        // Meanwhile, point-in-time snapshots must always see the full total
+        LongAdder snapshots = new LongAdder();
+        LongAdder tooOld = new LongAdder();
+        long[] badSnapshot = {-1};
+        Thread auditor = new Thread(() -> {
+            while (System.nanoTime() < deadline) {
+                long[] sum = new long[1];
+                try {
+                    ledger.snapshot().forEachBalance((account, cents) -> sum[0] += cents);
+                } catch (IllegalStateException e) {
+                    tooOld.increment();
+                    continue;
+                }
+                if (sum[0] != expected) {
+                    badSnapshot[0] = sum[0];
+                }
+                snapshots.increment();
+            }
+        });
+        auditor.start();
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 1_000; i++) {
+                        int from = random.nextInt(accounts);
+                        int to = random.nextInt(accounts - 1);
+                        if (to >= from) {
+                            to++;
+                        }
+                        if (ledger.transfer(names[from], names[to], 1 + random.nextInt(5_000))) {
+                            transfers.increment();
+                        } else {
+                            rejected.increment();
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        auditor.join();
+
+        long[] total = new long[1];
+        ledger.forEachBalance((account, cents) -> {
+            if (cents < 0) {
+                throw new IllegalStateException("Negative balance in " + account);
+            }
+            total[0] += cents;
+        });
+        System.out.printf("%,d transfers (%,d rejected) in %ds on %d threads: %,d transfers/s%n",
+                transfers.sum(), rejected.sum(), seconds, threads, transfers.sum() / seconds);
+        System.out.printf("%,d consistent snapshots taken alongside (%,d too old)%n", snapshots.sum(), tooOld.sum());
+        if (total[0] != expected) {
+            System.out.println("FAILED: total balance " + total[0] + " != " + expected);
+            System.exit(1);
+        }
+        if (badSnapshot[0] >= 0) {
+            System.out.println("FAILED: a snapshot saw total balance " + badSnapshot[0] + " != " + expected);
+            System.exit(1);
+        }
+        System.out.println("PASSED: total balance conserved at " + Ledger.format(expected));
+    }
 }
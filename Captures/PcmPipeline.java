@@ -0,0 +1,462 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Zero-Copy PCM Pipeline: a WAV or raw PCM file is memory-mapped once and
+// never copied. A reader thread walks the mapping block by block, touches
+// each block's pages so the output thread never takes a page fault, and
+// publishes the block's offset and length through a lock-free
+// single-producer/single-consumer ring. The output thread runs on the
+// device clock, one block per period, and hands the sink a view of the
+// mapping itself. A period with no block ready is an underrun and plays
+// silence.
+public class PcmPipeline {
+    public enum State {
+        STOPPED, PLAYING, PAUSED
+    }
+
+    // Receives audio as the output device would; block is a read-only view
+    // positioned over the samples, valid only for the duration of the call
+    public interface PcmSink {
+        void write(ByteBuffer block, PcmFormat format);
+
+        void silence(int bytes);
+    }
+
+    // Processes one block in place: interleaved samples scaled to [-1, 1]
+    public interface BlockProcessor {
+        void process(float[] samples, int frames, int channels, int sampleRate);
+    }
+
+    // Interleaved little-endian signed 16-bit PCM
+    public static final class PcmFormat {
+        public final int sampleRate;
+        public final int channels;
+
+        public PcmFormat(int sampleRate, int channels) {
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+        }
+
+        public int frameBytes() {
+            return channels * 2;
+        }
+    }
+
+    // Sink that only tracks the peak level, standing in for a sound card
+    public static final class PeakMeterSink implements PcmSink {
+        private volatile int peak;
+
+        @Override
+        public void write(ByteBuffer block, PcmFormat format) {
+            int max = peak;
+            for (int i = block.position(), end = block.limit(); i < end; i += 2) {
+                max = Math.max(max, Math.abs(block.getShort(i)));
+            }
+            peak = max;
+        }
+
+        @Override
+        public void silence(int bytes) {
+        }
+
+        public int getPeak() {
+            return peak;
+        }
+    }
+
+    // Single-producer/single-consumer ring of block descriptors. Each side
+    // keeps a cached copy of the other side's counter and only re-reads the
+    // shared one when the ring looks full or empty.
+    static final class BlockRing {
+        static final long EMPTY = -1;
+
+        private final long[] slots;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+        // Producer's view of head
+        private long cachedHead;
+        // Consumer's view of tail
+        private long cachedTail;
+
+        BlockRing(int capacity) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Capacity must be a power of two");
+            }
+            slots = new long[capacity];
+            mask = capacity - 1;
+        }
+
+        boolean offer(long value) {
+            long t = tail.get();
+            if (t - cachedHead == slots.length) {
+                cachedHead = head.get();
+                if (t - cachedHead == slots.length) {
+                    return false;
+                }
+            }
+            slots[(int) (t & mask)] = value;
+            // Release store: the consumer sees the slot once it sees the new tail
+            tail.lazySet(t + 1);
+            return true;
+        }
+
+        long poll() {
+            long h = head.get();
+            if (h == cachedTail) {
+                cachedTail = tail.get();
+                if (h == cachedTail) {
+                    return EMPTY;
+                }
+            }
+            long value = slots[(int) (h & mask)];
+            head.lazySet(h + 1);
+            return value;
+        }
+    }
+
+    private static final int DEFAULT_BLOCK_FRAMES = 1_024;
+    private static final int DEFAULT_RING_BLOCKS = 16;
+    private static final int PAGE_BYTES = 4_096;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Path file;
+    private final PcmFormat format;
+    private final MappedByteBuffer mapping;
+    private final int dataStart;
+    private final int dataEnd;
+    private final int blockBytes;
+    private final long periodNanos;
+    private final int ringBlocks;
+    private final PcmSink sink;
+    private final LongAdder underruns = new LongAdder();
+    private final LongAdder blocksPlayed = new LongAdder();
+    // CPU of threads that have exited; they add to it themselves, so not under the pipeline lock
+    private final AtomicLong finishedCpuNanos = new AtomicLong();
+
+    private volatile State state = State.STOPPED;
+    // Optional effects; without one the sink gets the mapping itself
+    private volatile BlockProcessor processor;
+    private volatile boolean endOfData;
+    private Thread reader;
+    private Thread output;
+
+    public PcmPipeline(Path file, PcmSink sink) throws IOException {
+        this(file, sink, DEFAULT_BLOCK_FRAMES, DEFAULT_RING_BLOCKS);
+    }
+
+    public PcmPipeline(Path file, PcmSink sink, int blockFrames, int ringBlocks) throws IOException {
+        this.file = file;
+        this.sink = sink;
+        this.ringBlocks = ringBlocks;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + file);
+            }
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+        if (mapping.limit() >= 12 && mapping.getInt(0) == 0x46464952 && mapping.getInt(8) == 0x45564157) {
+            // "RIFF" ... "WAVE": walk the chunks for the format and the samples.
+            // Sizes are unsigned and untrusted; a truncated data chunk is played
+            // as far as it goes, anything else out of bounds is malformed.
+            PcmFormat found = null;
+            int start = -1;
+            int end = -1;
+            int chunk = 12;
+            while (chunk + 8 <= mapping.limit() && start < 0) {
+                int id = mapping.getInt(chunk);
+                long size = mapping.getInt(chunk + 4) & 0xFFFFFFFFL;
+                if (id == 0x20746D66) { // "fmt "
+                    if (size < 16 || chunk + 8 + size > mapping.limit()) {
+                        throw new IOException("Malformed WAV file: " + file);
+                    }
+                    if (mapping.getShort(chunk + 8) != 1 || mapping.getShort(chunk + 22) != 16) {
+                        throw new IOException("Only 16-bit PCM WAV is supported: " + file);
+                    }
+                    int sampleRate = mapping.getInt(chunk + 12);
+                    int channels = mapping.getShort(chunk + 10);
+                    if (sampleRate <= 0 || channels <= 0) {
+                        throw new IOException("Malformed WAV file: " + file);
+                    }
+                    found = new PcmFormat(sampleRate, channels);
+                } else if (id == 0x61746164) { // "data"
+                    start = chunk + 8;
+                    end = (int) Math.min(mapping.limit(), start + size);
+                    break;
+                }
+                long next = chunk + 8 + size + (size & 1);
+                if (next > mapping.limit()) {
+                    break;
+                }
+                chunk = (int) next;
+            }
+            if (found == null || start < 0) {
+                throw new IOException("Malformed WAV file: " + file);
+            }
+            format = found;
+            dataStart = start;
+            // Whole frames only: a truncated chunk can stop mid-sample
+            dataEnd = start + (end - start) / found.frameBytes() * found.frameBytes();
+        } else if (isRawPcm(file)) {
+            // Headerless files are taken as CD-quality PCM
+            format = new PcmFormat(44_100, 2);
+            dataStart = 0;
+            dataEnd = mapping.limit() / format.frameBytes() * format.frameBytes();
+        } else {
+            throw new IOException("Unsupported audio format: " + file);
+        }
+        blockBytes = blockFrames * format.frameBytes();
+        periodNanos = blockFrames * 1_000_000_000L / format.sampleRate;
+    }
+
+    private static boolean isRawPcm(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        return name.endsWith(".pcm") || name.endsWith(".raw");
+    }
+
+    public PcmFormat getFormat() {
+        return format;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    // Takes effect from the next block; null plays the file untouched
+    public void setProcessor(BlockProcessor processor) {
+        this.processor = processor;
+    }
+
+    // Starts from the beginning when stopped, resumes when paused
+    public synchronized void play() {
+        if (state == State.PLAYING) {
+            return;
+        }
+        if (state == State.STOPPED) {
+            joinThreads();
+            BlockRing ring = new BlockRing(ringBlocks);
+            endOfData = false;
+            state = State.PLAYING;
+            reader = new Thread(() -> read(ring), "pcm-reader " + file.getFileName());
+            output = new Thread(() -> write(ring), "pcm-output " + file.getFileName());
+            reader.setDaemon(true);
+            output.setDaemon(true);
+            reader.start();
+            output.start();
+        } else {
+            state = State.PLAYING;
+            LockSupport.unpark(output);
+        }
+    }
+
+    // The output stops consuming; the reader stops once the ring fills
+    public synchronized void pause() {
+        if (state == State.PLAYING) {
+            state = State.PAUSED;
+        }
+    }
+
+    public synchronized void stop() {
+        state = State.STOPPED;
+        joinThreads();
+    }
+
+    // Blocks until playback stops, either by stop() or at the end of the file
+    public void awaitEnd() throws InterruptedException {
+        Thread playing;
+        synchronized (this) {
+            playing = output;
+        }
+        if (playing != null) {
+            playing.join();
+        }
+    }
+
+    public long getUnderruns() {
+        return underruns.sum();
+    }
+
+    public long getBlocksPlayed() {
+        return blocksPlayed.sum();
+    }
+
+    // CPU time used by this stream's reader and output threads so far
+    public synchronized long getCpuNanos() {
+        long total = finishedCpuNanos.get();
+        for (Thread thread : new Thread[] {reader, output}) {
+            if (thread != null && thread.isAlive()) {
+                total += Math.max(0, THREADS.getThreadCpuTime(thread.getId()));
+            }
+        }
+        return total;
+    }
+
+    private void joinThreads() {
+        for (Thread thread : new Thread[] {reader, output}) {
+            if (thread == null) {
+                continue;
+            }
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        reader = null;
+        output = null;
+    }
+
+    private void read(BlockRing ring) {
+        int position = dataStart;
+        while (state != State.STOPPED && position < dataEnd) {
+            int length = Math.min(blockBytes, dataEnd - position);
+            // Fault the pages in here rather than on the output thread
+            for (int page = position; page < position + length; page += PAGE_BYTES) {
+                mapping.get(page);
+            }
+            long block = (long) position << 32 | length;
+            while (!ring.offer(block)) {
+                if (state == State.STOPPED) {
+                    break;
+                }
+                LockSupport.parkNanos(periodNanos / 4);
+            }
+            position += length;
+        }
+        endOfData = true;
+        recordCpu();
+    }
+
+    private void write(BlockRing ring) {
+        ByteBuffer view = mapping.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        // Processed blocks are converted through these, allocated once per playback
+        float[] samples = new float[blockBytes / 2];
+        ByteBuffer processed = ByteBuffer.allocateDirect(blockBytes).order(ByteOrder.LITTLE_ENDIAN);
+        long next = System.nanoTime();
+        while (state != State.STOPPED) {
+            if (state == State.PAUSED) {
+                LockSupport.park(this);
+                next = System.nanoTime();
+                continue;
+            }
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            // Read the flag before polling: if the reader had finished, the ring holds everything
+            boolean finished = endOfData;
+            long block = ring.poll();
+            if (block != BlockRing.EMPTY) {
+                int offset = (int) (block >>> 32);
+                view.limit(offset + (int) block).position(offset);
+                BlockProcessor effects = processor;
+                if (effects == null) {
+                    sink.write(view, format);
+                } else {
+                    sink.write(process(effects, view, samples, processed), format);
+                }
+                blocksPlayed.increment();
+            } else if (finished) {
+                state = State.STOPPED;
+                break;
+            } else {
+                underruns.increment();
+                sink.silence(blockBytes);
+            }
+            next += periodNanos;
+        }
+        recordCpu();
+    }
+
+    private ByteBuffer process(BlockProcessor effects, ByteBuffer block, float[] samples, ByteBuffer out) {
+        int count = block.remaining() / 2;
+        for (int i = 0, at = block.position(); i < count; i++, at += 2) {
+            samples[i] = block.getShort(at) * (1f / 32_768);
+        }
+        effects.process(samples, count / format.channels, format.channels, format.sampleRate);
+        out.clear();
+        for (int i = 0; i < count; i++) {
+            float sample = Math.max(-1f, Math.min(1f, samples[i]));
+            out.putShort((short) (sample * 32_767));
+        }
+        return out.flip();
+    }
+
+    private void recordCpu() {
+        finishedCpuNanos.addAndGet(THREADS.getCurrentThreadCpuTime());
+    }
+}
+
+// Pipeline benchmark: plays several copies of a generated WAV file at once
+// in real time and reports underruns and CPU per stream.
+// Run with: java PcmPipelineBenchmark [streams] [seconds]
+class PcmPipelineBenchmark {
+    public static void main(String[] args) throws Exception {
+        int streams = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Path file = Path.of("pcm-benchmark.wav");
+        writeTone(file, 44_100, 2, seconds);
+        PcmPipeline[] pipelines = new PcmPipeline[streams];
+        PcmPipeline.PeakMeterSink[] sinks = new PcmPipeline.PeakMeterSink[streams];
+        for (int i = 0; i < streams; i++) {
+            sinks[i] = new PcmPipeline.PeakMeterSink();
+            pipelines[i] = new PcmPipeline(file, sinks[i]);
+        }
+
+        long begin = System.nanoTime();
+        for (PcmPipeline pipeline : pipelines) {
+            pipeline.play();
+        }
+        long underruns = 0;
+        long cpu = 0;
+        long blocks = 0;
+        for (PcmPipeline pipeline : pipelines) {
+            pipeline.awaitEnd();
+            pipeline.stop();
+            underruns += pipeline.getUnderruns();
+            cpu += pipeline.getCpuNanos();
+            blocks += pipeline.getBlocksPlayed();
+        }
+        double wall = (System.nanoTime() - begin) / 1e9;
+
+        System.out.printf("%d streams x %d s in %.2f s: %,d blocks, %,d underruns, peak %d,"
+                + " CPU %.2f ms per stream-second (%.3f%% of a core per stream)%n",
+                streams, seconds, wall, blocks, underruns, sinks[0].getPeak(),
+                cpu / 1e6 / streams / seconds, cpu / 1e7 / streams / seconds);
+        Files.deleteIfExists(file);
+    }
+
+    // A 440 Hz sine as 16-bit PCM WAV
+    static void writeTone(Path file, int sampleRate, int channels, int seconds) throws IOException {
+        int frames = sampleRate * seconds;
+        int dataBytes = frames * channels * 2;
+        ByteBuffer wav = ByteBuffer.allocate(44 + dataBytes).order(ByteOrder.LITTLE_ENDIAN);
+        wav.putInt(0x46464952).putInt(36 + dataBytes).putInt(0x45564157);
+        wav.putInt(0x20746D66).putInt(16).putShort((short) 1).putShort((short) channels)
+                .putInt(sampleRate).putInt(sampleRate * channels * 2)
+                .putShort((short) (channels * 2)).putShort((short) 16);
+        wav.putInt(0x61746164).putInt(dataBytes);
+        for (int i = 0; i < frames; i++) {
+            short sample = (short) (Math.sin(2 * Math.PI * 440 * i / sampleRate) * 16_000);
+            for (int c = 0; c < channels; c++) {
+                wav.putShort(sample);
+            }
+        }
+        Files.write(file, wav.array());
+    }
+}
@@ -0,0 +1,422 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Segment Fetcher: gets stream segments (<stream url>/<n>.seg) from a local
+// disk cache or the origin. Requests for a segment that is already being
+// fetched join that fetch instead of starting another, and every fetched
+// segment goes into the cache. readAhead() starts fetches for the next
+// segments in parallel so they are usually on disk before they are needed.
+public class SegmentFetcher implements AutoCloseable {
+    // Transport controls shared by the ways of playing a stream
+    public interface StreamControl {
+        void play();
+
+        void pause();
+
+        void stop();
+    }
+
+    // Size-bounded LRU cache of segment files. The index of file names and
+    // sizes lives in memory in access order; at startup it is rebuilt from
+    // the directory, oldest files first. Files are written to a temporary
+    // name and moved into place, so a reader never sees a partial segment.
+    public static final class DiskCache {
+        private final Path dir;
+        private final long maxBytes;
+        private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(256, 0.75f, true);
+        private long totalBytes;
+
+        public DiskCache(Path dir, long maxBytes) throws IOException {
+            this.dir = Files.createDirectories(dir);
+            this.maxBytes = maxBytes;
+            List<Path> existing;
+            try (Stream<Path> files = Files.list(dir)) {
+                existing = files.filter(file -> file.toString().endsWith(".seg")).collect(Collectors.toList());
+            }
+            existing.sort(Comparator.comparing(file -> file.toFile().lastModified()));
+            for (Path file : existing) {
+                long size = Files.size(file);
+                index.put(file.getFileName().toString(), size);
+                totalBytes += size;
+            }
+            evict();
+        }
+
+        // Null when the segment is not cached
+        public byte[] get(String key) {
+            String name = fileName(key);
+            synchronized (this) {
+                if (index.get(name) == null) {
+                    return null;
+                }
+            }
+            try {
+                return Files.readAllBytes(dir.resolve(name));
+            } catch (NoSuchFileException e) {
+                // Evicted between the index lookup and the read
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public synchronized boolean contains(String key) {
+            return index.containsKey(fileName(key));
+        }
+
+        public void put(String key, byte[] data) throws IOException {
+            String name = fileName(key);
+            Path temp = Files.createTempFile(dir, name, ".tmp");
+            Files.write(temp, data);
+            Files.move(temp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            synchronized (this) {
+                Long previous = index.put(name, (long) data.length);
+                totalBytes += data.length - (previous == null ? 0 : previous);
+                evict();
+            }
+        }
+
+        public synchronized long sizeBytes() {
+            return totalBytes;
+        }
+
+        private synchronized void evict() throws IOException {
+            Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                Files.deleteIfExists(dir.resolve(entry.getKey()));
+                totalBytes -= entry.getValue();
+                eldest.remove();
+            }
+        }
+
+        private static String fileName(String key) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+                StringBuilder name = new StringBuilder(36);
+                for (int i = 0; i < 16; i++) {
+                    name.append(Character.forDigit((digest[i] >> 4) & 0xF, 16))
+                            .append(Character.forDigit(digest[i] & 0xF, 16));
+                }
+                return name.append(".seg").toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // Plays a stream in real time: one segment per segment duration,
+    // reading ahead of the play position. Records how long the first
+    // segment took to arrive and how often playback had to wait for one.
+    public static final class Playback implements StreamControl {
+        private final SegmentFetcher fetcher;
+        private final String url;
+        private final int readAhead;
+        private final long segmentNanos;
+        private volatile PcmPipeline.State state = PcmPipeline.State.STOPPED;
+        private volatile long startupNanos = -1;
+        private volatile int segmentsPlayed;
+        private volatile int stalls;
+        private Thread thread;
+
+        public Playback(SegmentFetcher fetcher, String url, int readAhead, long segmentMillis) {
+            this.fetcher = fetcher;
+            this.url = url;
+            this.readAhead = readAhead;
+            this.segmentNanos = segmentMillis * 1_000_000L;
+        }
+
+        @Override
+        public synchronized void play() {
+            if (state == PcmPipeline.State.PAUSED) {
+                state = PcmPipeline.State.PLAYING;
+                LockSupport.unpark(thread);
+            } else if (state == PcmPipeline.State.STOPPED) {
+                join();
+                state = PcmPipeline.State.PLAYING;
+                startupNanos = -1;
+                segmentsPlayed = 0;
+                stalls = 0;
+                long requested = System.nanoTime();
+                thread = new Thread(() -> run(requested), "playback " + url);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        @Override
+        public synchronized void pause() {
+            if (state == PcmPipeline.State.PLAYING) {
+                state = PcmPipeline.State.PAUSED;
+            }
+        }
+
+        @Override
+        public synchronized void stop() {
+            state = PcmPipeline.State.STOPPED;
+            join();
+        }
+
+        // Blocks until the stream ends or is stopped
+        public void awaitEnd() throws InterruptedException {
+            Thread playing;
+            synchronized (this) {
+                playing = thread;
+            }
+            if (playing != null) {
+                playing.join();
+            }
+        }
+
+        public PcmPipeline.State getState() {
+            return state;
+        }
+
+        // Time from play() to the first segment, or -1 before it arrives
+        public long getStartupNanos() {
+            return startupNanos;
+        }
+
+        public int getSegmentsPlayed() {
+            return segmentsPlayed;
+        }
+
+        // Segments that were not ready when it was time to play them
+        public int getStalls() {
+            return stalls;
+        }
+
+        // Interrupting also cuts short a wait for a slow segment
+        private void join() {
+            if (thread != null) {
+                thread.interrupt();
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                thread = null;
+            }
+        }
+
+        private void run(long requested) {
+            int segment = 0;
+            while (state != PcmPipeline.State.STOPPED) {
+                if (state == PcmPipeline.State.PAUSED) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                fetcher.readAhead(url, segment + 1, readAhead);
+                CompletableFuture<byte[]> next = fetcher.fetch(url, segment);
+                boolean waited = !next.isDone() && segment > 0;
+                byte[] data;
+                try {
+                    data = next.get();
+                } catch (InterruptedException e) {
+                    break;
+                } catch (ExecutionException e) {
+                    System.err.println("Stream " + url + " failed: " + e.getCause());
+                    break;
+                }
+                if (data == null) {
+                    break;
+                }
+                if (waited) {
+                    stalls++;
+                }
+                if (segment == 0) {
+                    startupNanos = System.nanoTime() - requested;
+                }
+                segmentsPlayed = ++segment;
+                LockSupport.parkNanos(segmentNanos);
+            }
+            state = PcmPipeline.State.STOPPED;
+        }
+    }
+
+    private final DiskCache cache;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "segment-fetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final HttpClient client = HttpClient.newBuilder()
+            .executor(executor)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+    // First missing segment of each stream whose end has been seen
+    private final ConcurrentHashMap<String, Integer> streamEnds = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder originFetches = new LongAdder();
+    private final LongAdder joined = new LongAdder();
+
+    public SegmentFetcher(DiskCache cache) {
+        this.cache = cache;
+    }
+
+    // Completes with the segment, or with null past the end of the stream
+    public CompletableFuture<byte[]> fetch(String url, int segment) {
+        if (segment >= streamEnds.getOrDefault(url, Integer.MAX_VALUE)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String key = segmentKey(url, segment);
+        CompletableFuture<byte[]> pending = inFlight.get(key);
+        if (pending != null) {
+            joined.increment();
+            return pending;
+        }
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<byte[]> created = new CompletableFuture<>();
+        pending = inFlight.putIfAbsent(key, created);
+        if (pending != null) {
+            joined.increment();
+            return pending;
+        }
+        originFetches.increment();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(key)).timeout(Duration.ofSeconds(30)).build();
+        client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).whenComplete((response, error) -> {
+            try {
+                if (error != null) {
+                    created.completeExceptionally(error);
+                } else if (response.statusCode() == 404) {
+                    streamEnds.merge(url, segment, Math::min);
+                    created.complete(null);
+                } else if (response.statusCode() != 200) {
+                    created.completeExceptionally(new IOException("HTTP " + response.statusCode() + " for " + key));
+                } else {
+                    cache.put(key, response.body());
+                    created.complete(response.body());
+                }
+            } catch (IOException | RuntimeException e) {
+                created.completeExceptionally(e);
+            } finally {
+                inFlight.remove(key, created);
+            }
+        });
+        return created;
+    }
+
+    // Starts fetching whichever of the count segments from first are not
+    // cached or already on their way, without waiting for them
+    public void readAhead(String url, int first, int count) {
+        int end = Math.min(first + count, streamEnds.getOrDefault(url, Integer.MAX_VALUE));
+        for (int segment = first; segment < end; segment++) {
+            String key = segmentKey(url, segment);
+            if (!inFlight.containsKey(key) && !cache.contains(key)) {
+                fetch(url, segment);
+            }
+        }
+    }
+
+    private static String segmentKey(String url, int segment) {
+        return url + "/" + segment + ".seg";
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getOriginFetches() {
+        return originFetches.sum();
+    }
+
+    // Requests that shared a fetch already in flight
+    public long getJoined() {
+        return joined.sum();
+    }
+
+    public DiskCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
+
+// Cache benchmark against the local stand-in origin: many listeners start
+// the same stream together, then a second round finds it on disk, then a
+// second stream pushes the cache past its size limit.
+// Run with: java SegmentFetcherBenchmark [listeners] [readAhead]
+class SegmentFetcherBenchmark {
+    public static void main(String[] args) throws Exception {
+        int listeners = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int readAhead = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        Path dir = Files.createTempDirectory("segment-cache");
+
+        try (StubSegmentServer origin = new StubSegmentServer(40, 64 * 1024, 2);
+                SegmentFetcher fetcher = new SegmentFetcher(new SegmentFetcher.DiskCache(dir, 8L << 20))) {
+            origin.setLatency(60, 40);
+            // Untimed, so the first measured round does not include client start-up
+            round("warm-up", fetcher, origin.url("warm-up"), 1, readAhead);
+            round("cold, no read-ahead", fetcher, origin.url("album/track-1"), 1, 0);
+            round("cold, read-ahead " + readAhead, fetcher, origin.url("album/track-2"), listeners, readAhead);
+            round("warm", fetcher, origin.url("album/track-2"), listeners, readAhead);
+            round("cold, second stream", fetcher, origin.url("album/track-3"), listeners, readAhead);
+
+            long reads = fetcher.getHits() + fetcher.getOriginFetches() + fetcher.getJoined();
+            System.out.printf("Origin served %,d requests for %,d segment reads: hit ratio %.1f%%,"
+                    + " %,d shared in-flight fetches, cache %,d bytes%n",
+                    origin.getRequests(), reads, 100.0 * fetcher.getHits() / reads, fetcher.getJoined(),
+                    fetcher.getCache().sizeBytes());
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static void round(String name, SegmentFetcher fetcher, String url, int listeners, int readAhead)
+            throws InterruptedException {
+        SegmentFetcher.Playback[] playbacks = new SegmentFetcher.Playback[listeners];
+        for (int i = 0; i < listeners; i++) {
+            // Segments play ten times faster than real time to keep the run short
+            playbacks[i] = new SegmentFetcher.Playback(fetcher, url, readAhead, 200);
+            playbacks[i].play();
+        }
+        long startup = 0;
+        int stalls = 0;
+        for (SegmentFetcher.Playback playback : playbacks) {
+            playback.awaitEnd();
+            startup += playback.getStartupNanos();
+            stalls += playback.getStalls();
+        }
+        System.out.printf("%-24s %2d listeners: startup %.1f ms average, %d stalls%n",
+                name, listeners, startup / 1e6 / listeners, stalls);
+    }
+}
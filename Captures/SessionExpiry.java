@@ -0,0 +1,4 @@
+// Why a session timed out
+public enum SessionExpiry {
+    IDLE, ABSOLUTE
+}
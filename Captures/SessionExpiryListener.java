@@ -0,0 +1,4 @@
+// Observer for sessions that time out (not for explicit closes)
+public interface SessionExpiryListener {
+    void sessionExpired(String token, String username, SessionExpiry reason);
+}
@@ -0,0 +1,127 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// Local stand-in for a streaming origin. Serves GET <any path>/<n>.seg for
+// n below the segment count, with content derived from the path so every
+// fetch of a segment returns the same bytes. A path element such as "128k"
+// selects a bitrate variant and sizes the segment to match. Responses can
+// be slowed by a fixed latency, random jitter and a bandwidth cap, all of
+// which may be changed while the server runs.
+public class StubSegmentServer implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int segments;
+    private final int segmentBytes;
+    private final double segmentSeconds;
+    private final LongAdder requests = new LongAdder();
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+    private volatile long bytesPerSecond;
+
+    // segmentBytes is the size of segments outside a bitrate variant
+    public StubSegmentServer(int segments, int segmentBytes, double segmentSeconds) throws IOException {
+        this.segments = segments;
+        this.segmentBytes = segmentBytes;
+        this.segmentSeconds = segmentSeconds;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "stub-origin");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    // Base URL for a stream on this server
+    public String url(String stream) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + stream;
+    }
+
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    // Zero for unlimited
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            int slash = path.lastIndexOf('/');
+            int index;
+            try {
+                index = path.endsWith(".seg") ? Integer.parseInt(path.substring(slash + 1, path.length() - 4)) : -1;
+            } catch (NumberFormatException e) {
+                index = -1;
+            }
+            if (index < 0 || index >= segments) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] body = new byte[sizeFor(path.substring(0, Math.max(0, slash)))];
+            long seed = path.hashCode();
+            for (int i = 0; i < body.length; i++) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                body[i] = (byte) (seed >>> 56);
+            }
+            long delay = latencyMillis;
+            if (jitterMillis > 0) {
+                delay += ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+            }
+            long bandwidth = bytesPerSecond;
+            if (bandwidth > 0) {
+                delay += body.length * 1_000L / bandwidth;
+            }
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    // "128k" as the last directory means 128 kbit/s for segmentSeconds
+    private int sizeFor(String directory) {
+        String variant = directory.substring(directory.lastIndexOf('/') + 1);
+        if (variant.length() > 1 && variant.endsWith("k")) {
+            try {
+                return (int) (Integer.parseInt(variant.substring(0, variant.length() - 1)) * 1_000L / 8
+                        * segmentSeconds);
+            } catch (NumberFormatException e) {
+                // Not a variant; fall through
+            }
+        }
+        return segmentBytes;
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Hierarchical Timing Wheel: four levels of 64 slots, each level 64 times
+// coarser than the one below. A timer is filed in the coarsest level that
+// still separates it from "now" and moves down a level as its time nears,
+// so scheduling and expiring cost O(1) per timer with no periodic scans.
+// schedule() only enqueues; all wheel state is owned by the ticker thread.
+public class TimingWheel<T> {
+    // Called when a timer is due; return a later deadline to re-arm, or -1 to drop
+    interface Expiry<T> {
+        long expire(T item, long nowMillis);
+    }
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private static final class Timer<T> {
+        final T item;
+        long deadlineTick;
+
+        Timer(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private final long tickMillis;
+    private final Expiry<T> expiry;
+    private final long origin = System.nanoTime();
+    private final ConcurrentLinkedQueue<Timer<T>> incoming = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Timer<T>>[][] wheel;
+    private final ScheduledExecutorService ticker;
+    private long currentTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, Expiry<T> expiry) {
+        this.tickMillis = tickMillis;
+        this.expiry = expiry;
+        wheel = new ArrayDeque[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[level][slot] = new ArrayDeque<>();
+            }
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "timing-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long now() {
+        return (System.nanoTime() - origin) / 1_000_000L;
+    }
+
+    public void schedule(T item, long deadlineMillis) {
+        incoming.add(new Timer<>(item, ticksFor(deadlineMillis)));
+    }
+
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    private long ticksFor(long millis) {
+        return (millis + tickMillis - 1) / tickMillis;
+    }
+
+    private void advance() {
+        long target = now() / tickMillis;
+        while (currentTick < target) {
+            drainIncoming();
+            currentTick++;
+            // Each time a level wraps, pull the next slot of the level above down
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                ArrayDeque<Timer<T>> slot = wheel[level][(int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1))];
+                for (int n = slot.size(); n > 0; n--) {
+                    place(slot.poll());
+                }
+            }
+            ArrayDeque<Timer<T>> due = wheel[0][(int) (currentTick & (SLOTS - 1))];
+            for (int n = due.size(); n > 0; n--) {
+                place(due.poll());
+            }
+        }
+        drainIncoming();
+    }
+
+    private void drainIncoming() {
+        Timer<T> timer;
+        while ((timer = incoming.poll()) != null) {
+            place(timer);
+        }
+    }
+
+    private void place(Timer<T> timer) {
+        long delta = timer.deadlineTick - currentTick;
+        if (delta <= 0) {
+            long next;
+            try {
+                next = expiry.expire(timer.item, currentTick * tickMillis);
+            } catch (RuntimeException e) {
+                // Drop only this timer; the rest of the slot must still fire
+                System.err.println("Timing wheel callback failed: " + e);
+                return;
+            }
+            if (next < 0) {
+                return;
+            }
+            timer.deadlineTick = Math.max(ticksFor(next), currentTick + 1);
+            delta = timer.deadlineTick - currentTick;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        // Beyond the wheel's span: park in the farthest top slot and re-file later
+        long slotTick = Math.min(timer.deadlineTick, currentTick + (1L << (SLOT_BITS * LEVELS)) - 1);
+        wheel[level][(int) ((slotTick >>> (SLOT_BITS * level)) & (SLOTS - 1))].add(timer);
+    }
+}